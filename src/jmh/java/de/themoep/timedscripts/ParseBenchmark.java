@@ -0,0 +1,128 @@
+package de.themoep.timedscripts;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Loading script files of different sizes. The lines counter reports the parsed lines per second,
+ * the legacy benchmark is the BufferedReader loop that was used before the ScriptParser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int entries;
+
+    private StandInServer server;
+    private TimedScripts plugin;
+    private File dataFolder;
+    private File file;
+    private int lineCount;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StandInServer();
+        dataFolder = ScriptFiles.createDataFolder();
+        plugin = server.createPlugin(dataFolder);
+        File scripts = new File(dataFolder, "scripts");
+        lineCount = ScriptFiles.write(scripts, "parse", entries);
+        file = new File(scripts, "parse.txt");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        ScriptFiles.delete(dataFolder);
+    }
+
+    @Benchmark
+    public TimedScript timedScript(Lines lines) throws IOException {
+        lines.lines += lineCount;
+        return new TimedScript(plugin, file);
+    }
+
+    @Benchmark
+    public ScriptParser.Result parser(Lines lines) throws IOException {
+        lines.lines += lineCount;
+        return ScriptParser.parse(file.toPath());
+    }
+
+    @Benchmark
+    public Map<Double, List<TimedCommand>> legacy(Lines lines) throws IOException {
+        lines.lines += lineCount;
+        Map<Double, List<TimedCommand>> commands = new LinkedHashMap<>();
+        double currentTime = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                } else if (line.startsWith("-")) {
+                    commands.computeIfAbsent(currentTime, k -> new ArrayList<>()).add(new TimedCommand(line.substring(1)));
+                } else if (line.contains(":")) {
+                    String timeStr = line.substring(0, line.indexOf(':'));
+                    currentTime = Double.parseDouble(timeStr);
+                    if (line.length() > timeStr.length() + 1) {
+                        commands.computeIfAbsent(currentTime, k -> new ArrayList<>()).add(new TimedCommand(line.substring(timeStr.length() + 1)));
+                    }
+                }
+            }
+        }
+        return commands;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lines {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lines = 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.themoep.timedscripts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Parsing a command line into a TimedCommand and replacing its variables.
+ * With nested values every second variable value references the next variable with $var$.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"0", "5", "50"})
+    public int variables;
+
+    @Param({"false", "true"})
+    public boolean nested;
+
+    private String line;
+    private TimedCommand command;
+    private Map<String, String> replacements;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder("tellraw @a {\"text\":\"");
+        replacements = new HashMap<>();
+        for (int i = 0; i < variables; i++) {
+            builder.append(" part ").append(i).append(" %var").append(i).append('%');
+            if (nested && i % 2 == 0 && i + 1 < variables) {
+                replacements.put("var" + i, "value " + i + " and $var" + (i + 1) + "$");
+            } else {
+                replacements.put("var" + i, "value " + i);
+            }
+        }
+        builder.append("\"}");
+        line = builder.toString();
+        command = new TimedCommand(line);
+    }
+
+    @Benchmark
+    public TimedCommand construct() {
+        return new TimedCommand(line);
+    }
+
+    @Benchmark
+    public String render() throws TimedCommand.MissingVariableException {
+        return command.getCommand(replacements);
+    }
+}
@@ -0,0 +1,111 @@
+package de.themoep.timedscripts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Starting runs and processing server ticks while a number of runs are active.
+ * The scheduler uses the ticks timing mode without catching up so that every
+ * tick advances the runs by exactly one entry. The runs are staggered over the
+ * length of the script, runs that finish get replaced after the tick.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunBenchmark {
+    private static final int ENTRIES = 600;
+
+    @Param({"1", "100", "1000"})
+    public int runs;
+
+    @Param({"eager", "lazy"})
+    public String render;
+
+    private StandInServer server;
+    private File dataFolder;
+    private ScriptManager manager;
+    private TimedScript script;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StandInServer();
+        dataFolder = ScriptFiles.createDataFolder();
+        TimedScripts plugin = server.createPlugin(dataFolder);
+        plugin.getConfig().set("timing.mode", "ticks");
+        plugin.getConfig().set("timing.catchup", "stretch");
+        plugin.getConfig().set("dispatch.budget", 0);
+        plugin.getConfig().set("dispatch.render", render);
+        manager = new ScriptManager(plugin);
+        manager.loadSettings();
+
+        File scripts = new File(dataFolder, "scripts");
+        ScriptFiles.write(scripts, "run", ENTRIES);
+        script = new TimedScript(plugin, new File(scripts, "run.txt"));
+        manager.addScript(script);
+
+        int perTick = Math.max(runs / ENTRIES, 1);
+        for (int i = 0; i < runs; i++) {
+            manager.runScript(server.getConsole(), script);
+            if (i % perTick == 0) {
+                server.tick();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manager.destroy();
+        server.close();
+        ScriptFiles.delete(dataFolder);
+    }
+
+    @Benchmark
+    public ScriptRun start() {
+        ScriptRun run = manager.runScript(server.getConsole(), script);
+        run.cancel();
+        return run;
+    }
+
+    @Benchmark
+    public long tick() {
+        server.tick();
+        for (int i = manager.getActiveRunCount(); i < runs; i++) {
+            manager.runScript(server.getConsole(), script);
+        }
+        return server.getDispatched();
+    }
+}
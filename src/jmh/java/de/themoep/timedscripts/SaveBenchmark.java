@@ -0,0 +1,75 @@
+package de.themoep.timedscripts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Writing a whole script to its file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    private StandInServer server;
+    private File dataFolder;
+    private TimedScript script;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StandInServer();
+        dataFolder = ScriptFiles.createDataFolder();
+        TimedScripts plugin = server.createPlugin(dataFolder);
+        File scripts = new File(dataFolder, "scripts");
+        ScriptFiles.write(scripts, "save", entries);
+        script = new TimedScript(plugin, new File(scripts, "save.txt"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        ScriptFiles.delete(dataFolder);
+    }
+
+    @Benchmark
+    public boolean save() {
+        return script.save();
+    }
+}
@@ -0,0 +1,297 @@
+package de.themoep.timedscripts;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Keeps a number of runs active on a {@link StandInServer} while scripts get edited and reloaded,
+ * then reports the throughput, lateness, threads and heap. The scheduler uses the virtual clock
+ * of the server so the simulated time passes as fast as the ticks can be processed.
+ * Exits with status 1 when the threads or the heap grew more than allowed.
+ * <p/>
+ * Arguments are key=value pairs, keys with a dot are set in the plugin's config:
+ * <pre>
+ * runs=1000      concurrent runs to keep active
+ * seconds=300    simulated seconds
+ * scripts=20     amount of scripts, their length is spread up to the entries
+ * entries=1200   entries of the longest script, one per tick
+ * edits=10       script edits per simulated second, alternating between adding and removing a command
+ * reload=60      simulated seconds between reloading all scripts, 0 to never reload
+ * threads=8      allowed growth of the thread count
+ * heap=64        allowed growth of the used heap in MiB between the warmup and the end
+ * seed=1         seed of the random script and edit choices
+ * log=WARNING    minimum level of log messages to print
+ * </pre>
+ */
+public class LoadTest {
+    private static final long[] TICK_BUCKETS = {
+            100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 25000000, 50000000, 100000000, 250000000
+    };
+
+    private final Map<String, String> options = new HashMap<>();
+    private final Map<String, String> config = new HashMap<>();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final List<String> failures = new ArrayList<>();
+
+    private LoadTest(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("Argument " + arg + " is not a key=value pair!");
+            }
+            String key = arg.substring(0, equals);
+            (key.contains(".") ? config : options).put(key, arg.substring(equals + 1));
+        }
+    }
+
+    private int getOption(String key, int def) {
+        String value = options.get(key);
+        return value != null ? Integer.parseInt(value) : def;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest(args);
+        test.run();
+        if (!test.failures.isEmpty()) {
+            for (String failure : test.failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int runs = getOption("runs", 1000);
+        int seconds = getOption("seconds", 300);
+        int scriptCount = getOption("scripts", 20);
+        int entries = getOption("entries", 1200);
+        int edits = getOption("edits", 10);
+        int reload = getOption("reload", 60);
+        int allowedThreads = getOption("threads", 8);
+        int allowedHeap = getOption("heap", 64);
+        Random random = new Random(getOption("seed", 1));
+
+        int threadsBefore = threadBean.getThreadCount();
+        StandInServer server = new StandInServer();
+        server.setLogLevel(Level.parse(options.getOrDefault("log", "WARNING")));
+        File dataFolder = ScriptFiles.createDataFolder();
+        try {
+            File scriptFolder = new File(dataFolder, "scripts");
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < scriptCount; i++) {
+                String name = "load" + i;
+                ScriptFiles.write(scriptFolder, name, Math.max(entries * (i + 1) / scriptCount, 1));
+                names.add(name);
+            }
+
+            TimedScripts plugin = server.createPlugin(dataFolder);
+            for (Map.Entry<String, String> entry : config.entrySet()) {
+                plugin.getConfig().set(entry.getKey(), parseValue(entry.getValue()));
+            }
+            ScriptManager manager = new ScriptManager(plugin);
+            manager.getScheduler().setClock(server::getNanoTime);
+            CompletableFuture<Void> loading = manager.loadScripts();
+            while (!loading.isDone()) {
+                server.tick();
+                Thread.sleep(1);
+            }
+            loading.get();
+
+            System.out.println("Load test: " + runs + " concurrent runs of " + scriptCount + " scripts for " + seconds + "s simulated time");
+            int threadsBaseline = threadBean.getThreadCount();
+            threadBean.resetPeakThreadCount();
+
+            long ticks = seconds * 1000L / ScriptScheduler.MILLIS_PER_TICK;
+            long warmup = ticks / 10;
+            long reloadTicks = reload * 1000L / ScriptScheduler.MILLIS_PER_TICK;
+            double editsPerTick = edits * ScriptScheduler.MILLIS_PER_TICK / 1000.0;
+            double editDebt = 0;
+            int editCount = 0;
+            int reloads = 0;
+            Deque<Edit> added = new ArrayDeque<>();
+            CompletableFuture<Void> reloading = null;
+            ScriptMetrics.Histogram tickTime = new ScriptMetrics.Histogram(TICK_BUCKETS);
+            long heapWarm = 0;
+            long dispatchedWarm = 0;
+            long started = 0;
+            long realStart = 0;
+
+            for (long tick = 0; tick < ticks; tick++) {
+                if (tick == warmup) {
+                    heapWarm = getUsedHeap();
+                    dispatchedWarm = server.getDispatched();
+                    realStart = System.nanoTime();
+                }
+
+                while (manager.getActiveRunCount() + manager.getQueuedRunCount() < runs) {
+                    TimedScript script = manager.getScript(names.get(random.nextInt(names.size())));
+                    if (script == null || manager.runScript(server.getConsole(), script) == null) {
+                        break;
+                    }
+                    started++;
+                }
+
+                for (editDebt += editsPerTick; editDebt >= 1; editDebt--) {
+                    if (editCount++ % 2 == 0 || added.isEmpty()) {
+                        String name = names.get(random.nextInt(names.size()));
+                        TimedScript script = manager.getScript(name);
+                        if (script != null) {
+                            Timeline timeline = script.getTimeline();
+                            double duration = timeline.isEmpty() ? 0 : timeline.getTime(timeline.size() - 1);
+                            double time = Math.round(random.nextDouble() * duration * 20) / 20.0;
+                            String command = "say Edit " + editCount;
+                            script.addCommand(time, command);
+                            added.add(new Edit(name, time, command));
+                        }
+                    } else {
+                        Edit edit = added.poll();
+                        TimedScript script = manager.getScript(edit.script);
+                        if (script != null) {
+                            script.removeCommand(edit.time, edit.command);
+                        }
+                    }
+                }
+
+                if (reloadTicks > 0 && tick > 0 && tick % reloadTicks == 0 && (reloading == null || reloading.isDone())) {
+                    reloading = manager.loadScripts();
+                    reloads++;
+                }
+
+                long start = System.nanoTime();
+                server.tick();
+                if (tick >= warmup) {
+                    tickTime.record(System.nanoTime() - start);
+                }
+            }
+
+            long realTime = System.nanoTime() - realStart;
+            long measuredTicks = ticks - warmup;
+            long dispatched = server.getDispatched() - dispatchedWarm;
+            long heapEnd = getUsedHeap();
+            int threadsPeak = threadBean.getPeakThreadCount();
+
+            long completed = 0;
+            long cancelled = 0;
+            long dropped = 0;
+            long latenessCount = 0;
+            long latenessSum = 0;
+            long latenessMax = 0;
+            long latenessP99 = 0;
+            for (ScriptMetrics metrics : manager.getMetrics()) {
+                completed += metrics.getRunsCompleted();
+                cancelled += metrics.getRunsCancelled();
+                dropped += metrics.getCommandsDropped();
+                latenessCount += metrics.getLateness().getCount();
+                latenessSum += metrics.getLateness().getSum();
+                latenessMax = Math.max(latenessMax, metrics.getLateness().getMax());
+                latenessP99 = Math.max(latenessP99, metrics.getLateness().getPercentile(0.99));
+            }
+
+            System.out.println("Runs: " + started + " started, " + completed + " completed, " + cancelled + " cancelled, "
+                    + manager.getRejectedRunCount() + " rejected");
+            System.out.println("Edits: " + editCount + ", reloads: " + reloads + ", pending saves: " + manager.getSaver().getPendingCount());
+            System.out.println("Throughput: " + measuredTicks * 1000000000L / Math.max(realTime, 1) + " ticks/s, "
+                    + dispatched * 1000000000L / Math.max(realTime, 1) + " commands/s real, "
+                    + dispatched * 1000 / (measuredTicks * ScriptScheduler.MILLIS_PER_TICK) + " commands/s simulated, "
+                    + dropped + " dropped");
+            System.out.println("Tick time: avg " + Utils.formatNanos(tickTime.getMean()) + " p50 " + Utils.formatNanos(tickTime.getPercentile(0.5))
+                    + " p99 " + Utils.formatNanos(tickTime.getPercentile(0.99)) + " max " + Utils.formatNanos(tickTime.getMax()));
+            System.out.println("Dispatch lateness: avg " + (latenessCount > 0 ? latenessSum / latenessCount : 0) + "ms, worst script p99 "
+                    + latenessP99 + "ms, max " + latenessMax + "ms");
+            System.out.println("Threads: " + threadsBefore + " before, " + threadsBaseline + " after loading, " + threadsPeak + " peak");
+            System.out.println("Heap: " + heapWarm / 1024 / 1024 + " MiB after warmup, " + heapEnd / 1024 / 1024 + " MiB at the end");
+
+            if (threadsPeak - threadsBaseline > allowedThreads) {
+                failures.add("The thread count grew by " + (threadsPeak - threadsBaseline) + " while running, allowed are " + allowedThreads);
+            }
+            if ((heapEnd - heapWarm) / 1024 / 1024 > allowedHeap) {
+                failures.add("The heap grew by " + (heapEnd - heapWarm) / 1024 / 1024 + " MiB, allowed are " + allowedHeap + " MiB");
+            }
+
+            manager.destroy();
+        } finally {
+            server.close();
+            ScriptFiles.delete(dataFolder);
+        }
+
+        // Threads that got shut down might need a moment to finish
+        int threadsAfter = threadBean.getThreadCount();
+        for (int i = 0; i < 50 && threadsAfter - threadsBefore > 0; i++) {
+            Thread.sleep(20);
+            threadsAfter = threadBean.getThreadCount();
+        }
+        System.out.println("Threads after disabling: " + threadsAfter);
+        if (threadsAfter - threadsBefore > allowedThreads) {
+            failures.add((threadsAfter - threadsBefore) + " threads are still running after disabling, allowed are " + allowedThreads);
+        }
+    }
+
+    /**
+     * Parse a config value from the command line so that the config returns it for numbers and booleans
+     * @param value The value
+     * @return The value as a Long, Double, Boolean or the String itself
+     */
+    private static Object parseValue(String value) {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.parseBoolean(value);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e1) {
+                return value;
+            }
+        }
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class Edit {
+        private final String script;
+        private final double time;
+        private final String command;
+
+        private Edit(String script, double time, String command) {
+            this.script = script;
+            this.time = time;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Dispatches the commands of scripts on the main thread while respecting a time budget per tick.
+ * Commands that don't fit into the budget of the current tick are handled according
+ * to the {@link OverflowPolicy} of their script.
+ */
+public class CommandDispatcher {
+    private final TimedScripts plugin;
+    private final CommandResolver resolver;
+    private final TickProfiler profiler;
+
+    private final Deque<Dispatch> queue = new ArrayDeque<>();
+    private final Deque<Dispatch> carry = new ArrayDeque<>();
+
+    private long budget = 0;
+    private long spent = 0;
+    private boolean draining = false;
+    private long dropped = 0;
+
+    private DispatchMode mode = DispatchMode.SERVER;
+    private long directCount = 0;
+    private long directTime = 0;
+    private long serverCount = 0;
+    private long serverTime = 0;
+
+    public CommandDispatcher(TimedScripts plugin) {
+        this.plugin = plugin;
+        this.resolver = new CommandResolver(plugin);
+        this.profiler = new TickProfiler(plugin.getLogger());
+        plugin.getServer().getPluginManager().registerEvents(resolver, plugin);
+    }
+
+    /**
+     * Set how commands get dispatched
+     * @param mode The DispatchMode
+     */
+    public void setMode(DispatchMode mode) {
+        this.mode = mode;
+        resolver.invalidate();
+    }
+
+    /**
+     * Get how commands get dispatched
+     * @return The DispatchMode
+     */
+    public DispatchMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the time that can be spent dispatching commands per tick
+     * @param budget The budget in nanoseconds, 0 or less for no limit
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get the time that can be spent dispatching commands per tick
+     * @return The budget in nanoseconds, 0 or less if there is no limit
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Queue commands to be dispatched. They will only be run on the next call of {@link #drain()}
+     * @param sender   The sender to run the commands as
+     * @param commands The commands to dispatch
+     * @param policy   What to do with the commands if they don't fit into the budget
+     */
+    public void submit(CommandSender sender, List<String> commands, OverflowPolicy policy) {
+        submit(sender, null, commands, policy);
+    }
+
+    /**
+     * Queue commands to be dispatched. They will only be run on the next call of {@link #drain()}
+     * @param sender   The sender to run the commands as
+     * @param sources  The TimedCommands that the commands were rendered from, used for direct dispatching;
+     *                 ignored if <tt>null</tt> or not of the same size as the commands
+     * @param commands The commands to dispatch
+     * @param policy   What to do with the commands if they don't fit into the budget
+     */
+    public void submit(CommandSender sender, List<TimedCommand> sources, List<String> commands, OverflowPolicy policy) {
+        submit(sender, sources, commands, policy, null, 0);
+    }
+
+    /**
+     * Queue commands to be dispatched. They will only be run on the next call of {@link #drain()}
+     * @param sender   The sender to run the commands as
+     * @param sources  The TimedCommands that the commands were rendered from, used for direct dispatching;
+     *                 ignored if <tt>null</tt> or not of the same size as the commands
+     * @param commands The commands to dispatch
+     * @param policy   What to do with the commands if they don't fit into the budget
+     * @param metrics  The metrics of the script to record the dispatch time in, can be <tt>null</tt>
+     * @param offset   The offset of the entry the commands belong to in milliseconds, used by the profiler
+     */
+    public synchronized void submit(CommandSender sender, List<TimedCommand> sources, List<String> commands, OverflowPolicy policy, ScriptMetrics metrics, long offset) {
+        if (sources != null && sources.size() != commands.size()) {
+            sources = null;
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            queue.add(new Dispatch(sender, sources != null ? sources.get(i) : null, commands.get(i), policy, metrics, offset));
+        }
+    }
+
+    /**
+     * Start a new tick. This resets the spent time.
+     */
+    void startTick() {
+        spent = 0;
+        profiler.startTick();
+    }
+
+    /**
+     * End the current tick
+     * @param duration The time the scheduler spent in this tick in nanoseconds
+     */
+    void endTick(long duration) {
+        profiler.endTick(duration);
+    }
+
+    /**
+     * Get the profiler that measures how much of each tick the scripts take
+     * @return The TickProfiler
+     */
+    public TickProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Dispatch queued commands until the budget of the current tick is used up.
+     * Has to be called on the main thread.
+     */
+    public void drain() {
+        if (draining) {
+            // Called by a command that we dispatched, the outer call will handle new commands
+            return;
+        }
+        draining = true;
+        try {
+            Dispatch dispatch;
+            while ((dispatch = poll()) != null) {
+                if (budget > 0 && spent >= budget) {
+                    if (dispatch.policy == OverflowPolicy.DROP) {
+                        dropped++;
+                        if (dispatch.metrics != null) {
+                            dispatch.metrics.commandDropped();
+                        }
+                        continue;
+                    } else if (dispatch.policy == OverflowPolicy.DEFER) {
+                        carry.add(dispatch);
+                        continue;
+                    }
+                }
+                long start = System.nanoTime();
+                boolean direct = false;
+                try {
+                    direct = mode == DispatchMode.DIRECT && dispatchDirectly(dispatch);
+                    if (!direct) {
+                        plugin.getServer().dispatchCommand(dispatch.sender, dispatch.command);
+                    }
+                } catch (Throwable e) {
+                    plugin.getLogger().log(Level.SEVERE, "Error while dispatching script command '" + dispatch.command + "'!", e);
+                }
+                long duration = System.nanoTime() - start;
+                spent += duration;
+                if (dispatch.metrics != null) {
+                    dispatch.metrics.dispatched(duration);
+                    profiler.record(dispatch.metrics.getName(), dispatch.getLabel(), dispatch.offset, duration);
+                }
+                if (direct) {
+                    directCount++;
+                    directTime += duration;
+                } else {
+                    serverCount++;
+                    serverTime += duration;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                // Deferred commands go in front of everything that got queued in the meantime
+                while (!carry.isEmpty()) {
+                    queue.addFirst(carry.pollLast());
+                }
+            }
+            draining = false;
+        }
+    }
+
+    /**
+     * Execute a command on its Command object without going through the server's command line parsing
+     * @param dispatch The command to dispatch
+     * @return <tt>true</tt> if it was executed; <tt>false</tt> if it has to be dispatched by the server
+     */
+    private boolean dispatchDirectly(Dispatch dispatch) {
+        if (dispatch.source == null) {
+            return false;
+        }
+        Command target = resolver.resolve(dispatch.source);
+        if (target == null) {
+            return false;
+        }
+        String[] args = dispatch.source.getArgs();
+        if (args == null) {
+            String[] split = dispatch.command.split(" ");
+            if (split.length == 0) {
+                return false;
+            }
+            args = Arrays.copyOfRange(split, 1, split.length);
+        }
+        target.execute(dispatch.sender, dispatch.source.getLabel(), args);
+        return true;
+    }
+
+    private synchronized Dispatch poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Get the amount of commands that are waiting to be dispatched
+     * @return The amount of queued commands
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Get the amount of commands that were dropped because they did not fit into the budget
+     * @return The amount of dropped commands
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the amount of commands that were executed directly on their Command object
+     * @return The amount of directly dispatched commands
+     */
+    public long getDirectCount() {
+        return directCount;
+    }
+
+    /**
+     * Get the average time it took to execute a command directly on its Command object
+     * @return The average time in nanoseconds; 0 if no command was dispatched directly yet
+     */
+    public long getDirectAverage() {
+        return directCount > 0 ? directTime / directCount : 0;
+    }
+
+    /**
+     * Get the amount of commands that were dispatched by the server
+     * @return The amount of commands dispatched by the server
+     */
+    public long getServerCount() {
+        return serverCount;
+    }
+
+    /**
+     * Get the average time it took the server to dispatch a command
+     * @return The average time in nanoseconds; 0 if no command was dispatched by the server yet
+     */
+    public long getServerAverage() {
+        return serverCount > 0 ? serverTime / serverCount : 0;
+    }
+
+    /**
+     * Remove all queued commands
+     */
+    public synchronized void clear() {
+        queue.clear();
+    }
+
+    private static class Dispatch {
+        private final CommandSender sender;
+        private final TimedCommand source;
+        private final String command;
+        private final OverflowPolicy policy;
+        private final ScriptMetrics metrics;
+        private final long offset;
+
+        private Dispatch(CommandSender sender, TimedCommand source, String command, OverflowPolicy policy, ScriptMetrics metrics, long offset) {
+            this.sender = sender;
+            this.source = source;
+            this.command = command;
+            this.policy = policy;
+            this.metrics = metrics;
+            this.offset = offset;
+        }
+
+        private String getLabel() {
+            if (source != null && source.getLabel() != null) {
+                return source.getLabel();
+            }
+            int space = command.indexOf(' ');
+            return (space < 0 ? command : command.substring(0, space)).toLowerCase();
+        }
+    }
+
+    public enum DispatchMode {
+        /**
+         * Let the server parse and dispatch the command line
+         */
+        SERVER,
+        /**
+         * Execute commands with a static label directly on their Command object,
+         * others and unknown commands still get dispatched by the server
+         */
+        DIRECT
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Dispatch the command in the next tick, keeping the order
+         */
+        DEFER,
+        /**
+         * Don't dispatch the command at all
+         */
+        DROP,
+        /**
+         * Dispatch the command even though the budget is used up
+         */
+        FORCE
+    }
+}
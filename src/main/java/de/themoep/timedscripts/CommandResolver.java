@@ -0,0 +1,108 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandMap;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Resolves the static labels of TimedCommands to the Command objects of the server's command map.
+ * The result is cached in the TimedCommand until a plugin gets enabled or disabled.
+ */
+public class CommandResolver implements Listener {
+    private final TimedScripts plugin;
+    private CommandMap commandMap = null;
+    private boolean lookedUp = false;
+    private volatile int epoch = 0;
+
+    public CommandResolver(TimedScripts plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Get the Command that a TimedCommand would be dispatched to
+     * @param command The TimedCommand
+     * @return The registered Command or <tt>null</tt> if the label is a variable or no such command is registered
+     */
+    public Command resolve(TimedCommand command) {
+        if (command.getLabel() == null) {
+            return null;
+        }
+        int currentEpoch = epoch;
+        Command target;
+        if (command.resolvedEpoch == currentEpoch) {
+            target = command.resolvedTarget;
+        } else {
+            target = lookup(command.getLabel());
+            command.resolvedTarget = target;
+            command.resolvedEpoch = currentEpoch;
+        }
+        if (target != null && !target.isRegistered()) {
+            invalidate();
+            return null;
+        }
+        return target;
+    }
+
+    private Command lookup(String label) {
+        CommandMap commandMap = getCommandMap();
+        if (commandMap != null) {
+            return commandMap.getCommand(label);
+        }
+        return plugin.getServer().getPluginCommand(label);
+    }
+
+    private CommandMap getCommandMap() {
+        if (!lookedUp) {
+            lookedUp = true;
+            try {
+                // The command map is not part of the API but all known implementations provide this method
+                Method method = plugin.getServer().getClass().getMethod("getCommandMap");
+                commandMap = (CommandMap) method.invoke(plugin.getServer());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not get the server's command map, direct dispatching will only work for plugin commands!", e);
+            }
+        }
+        return commandMap;
+    }
+
+    /**
+     * Invalidate all cached Commands
+     */
+    public void invalidate() {
+        epoch++;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        invalidate();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        invalidate();
+    }
+}
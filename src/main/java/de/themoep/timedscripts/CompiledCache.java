@@ -0,0 +1,302 @@
+package de.themoep.timedscripts;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Stores the parsed timelines and compiled commands of script files so that unchanged
+ * scripts don't need to be parsed again. A compiled file is only used when the modification
+ * time, the size and the CRC32 checksum of the script file still match; the script file
+ * always stays the source of truth. Compiled files end with a CRC32 of their own contents
+ * so that corrupt files get detected before anything in them gets decoded.
+ */
+public class CompiledCache {
+    private static final int MAGIC = 0x54534331; // TSC1
+    private static final int FORMAT = 3;
+
+    private final Logger logger;
+    private final File folder;
+
+    /**
+     * @param logger The logger to log errors to
+     * @param folder The folder to store the compiled files in
+     */
+    public CompiledCache(Logger logger, File folder) {
+        this.logger = logger;
+        this.folder = folder;
+    }
+
+    private File getCompiledFile(File source) {
+        return new File(folder, source.getName() + ".bin");
+    }
+
+    /**
+     * Read the compiled form of a script file
+     * @param source       The script file
+     * @param size         The current size of the script file
+     * @param lastModified The current modification time of the script file
+     * @return The compiled script; <tt>null</tt> if there is none or it doesn't match the script file anymore
+     */
+    public Compiled read(File source, long size, long lastModified) {
+        File compiledFile = getCompiledFile(source);
+        if (!compiledFile.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(compiledFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                return null;
+            }
+            if (!hasValidChecksum(buffer)) {
+                throw new IOException("The checksum of the compiled file doesn't match its contents");
+            }
+            if (in.readLong() != lastModified || in.readLong() != size || in.readLong() != checksum(source)) {
+                return null;
+            }
+            String creatorName = readString(in);
+            UUID creatorId = new UUID(in.readLong(), in.readLong());
+            long revision = in.readLong();
+            Timeline.Builder builder = new Timeline.Builder();
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                double time = in.readDouble();
+                int commands = in.readInt();
+                for (int j = 0; j < commands; j++) {
+                    builder.add(time, new TimedCommand(in));
+                }
+            }
+            return new Compiled(creatorName, creatorId, revision, builder.build());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read compiled script " + compiledFile.getName() + ", parsing the script file instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the compiled form of a script file. Nothing is written if the script file
+     * was modified since it was read.
+     * @param source       The script file
+     * @param size         The size of the script file when it was read
+     * @param lastModified The modification time of the script file when it was read
+     * @param creatorName  The name of the script's creator
+     * @param creatorId    The UUID of the script's creator
+     * @param revision     The revision the script file was written at
+     * @param timeline     The parsed timeline of the script
+     */
+    public void write(File source, long size, long lastModified, String creatorName, UUID creatorId, long revision, Timeline timeline) {
+        File compiledFile = getCompiledFile(source);
+        Path target = compiledFile.toPath();
+        Path temp = target.resolveSibling(compiledFile.getName() + ".tmp");
+        try {
+            long checksum = checksum(source);
+            if (source.length() != size || source.lastModified() != lastModified) {
+                return;
+            }
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Could not create folder " + folder.getPath());
+            }
+            try (CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32());
+                 DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(lastModified);
+                out.writeLong(size);
+                out.writeLong(checksum);
+                writeString(out, creatorName);
+                out.writeLong(creatorId.getMostSignificantBits());
+                out.writeLong(creatorId.getLeastSignificantBits());
+                out.writeLong(revision);
+                out.writeInt(timeline.size());
+                for (int i = 0; i < timeline.size(); i++) {
+                    List<TimedCommand> commands = timeline.getCommands(i);
+                    out.writeDouble(timeline.getTime(i));
+                    out.writeInt(commands.size());
+                    for (TimedCommand command : commands) {
+                        command.write(out);
+                    }
+                }
+                out.writeLong(checked.getChecksum().getValue());
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write compiled script " + compiledFile.getName(), e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Remove the compiled form of a script file
+     * @param source The script file
+     */
+    public void delete(File source) {
+        try {
+            Files.deleteIfExists(getCompiledFile(source).toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete compiled script of " + source.getName(), e);
+        }
+    }
+
+    /**
+     * Check the CRC32 at the end of a compiled file against the contents before it
+     * @param buffer The whole compiled file, taken as a ByteBuffer as the MappedByteBuffer overrides don't exist on Java 8
+     * @return <tt>true</tt> if the checksum matches
+     */
+    private static boolean hasValidChecksum(ByteBuffer buffer) {
+        int end = buffer.capacity() - 8;
+        if (end < 0) {
+            return false;
+        }
+        ByteBuffer contents = buffer.duplicate();
+        ((Buffer) contents).position(0);
+        ((Buffer) contents).limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        return crc.getValue() == buffer.getLong(end);
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Write a string that can be longer than {@link DataOutput#writeUTF(String)} allows
+     * @param out    The output to write to
+     * @param string The string, can be <tt>null</tt>
+     * @throws IOException When writing failed
+     */
+    static void writeString(DataOutput out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string that was written with {@link #writeString(DataOutput, String)}
+     * @param in The input to read from
+     * @return The string, can be <tt>null</tt>
+     * @throws IOException When reading failed
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The contents of a compiled script file
+     */
+    public static class Compiled {
+        private final String creatorName;
+        private final UUID creatorId;
+        private final long revision;
+        private final Timeline timeline;
+
+        private Compiled(String creatorName, UUID creatorId, long revision, Timeline timeline) {
+            this.creatorName = creatorName;
+            this.creatorId = creatorId;
+            this.revision = revision;
+            this.timeline = timeline;
+        }
+
+        public String getCreatorName() {
+            return creatorName;
+        }
+
+        public UUID getCreatorId() {
+            return creatorId;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        public Timeline getTimeline() {
+            return timeline;
+        }
+    }
+
+    /**
+     * Reads from a ByteBuffer without copying it
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
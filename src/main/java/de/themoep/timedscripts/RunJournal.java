@@ -0,0 +1,535 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Records the active runs of resumable scripts in a file so that they can continue after
+ * a restart or crash. Runs only queue small records, a background thread appends them in
+ * batches and syncs the file once per batch. Once the file got too large it gets rewritten
+ * with only the state of the runs that didn't end yet.
+ */
+public class RunJournal implements Listener {
+    private static final byte START = 1;
+    private static final byte PROGRESS = 2;
+    private static final byte END = 3;
+    private static final long COMPACT_SIZE = 1024 * 1024;
+
+    private final TimedScripts plugin;
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final List<Entry> unfinished;
+    private final Map<UUID, List<Entry>> waiting = new ConcurrentHashMap<>();
+    private final int maxId;
+    private volatile boolean closed = false;
+
+    // Only used by the writer thread
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private FileChannel channel = null;
+    private long size = 0;
+    private boolean failed = false;
+
+    /**
+     * Read the runs that didn't end from the journal file and start writing to it
+     * @param plugin   The plugin
+     * @param file     The journal file
+     * @param interval The time in milliseconds between writes
+     * @throws IOException When the journal file could not be read
+     */
+    public RunJournal(TimedScripts plugin, File file, long interval) throws IOException {
+        this.plugin = plugin;
+        this.file = file;
+        int maxId = 0;
+        for (Record record : read()) {
+            apply(record);
+            maxId = Math.max(maxId, record.id);
+        }
+        this.maxId = maxId;
+        this.unfinished = new ArrayList<>(entries.values());
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, plugin.getName() + " Run Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Start with a file that only contains the unfinished runs
+        executor.execute(this::compact);
+        interval = Math.max(interval, 1);
+        executor.scheduleWithFixedDelay(this::write, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the runs that didn't end when the journal was last written
+     * @return The Entries of the unfinished runs
+     */
+    public List<Entry> getUnfinished() {
+        return unfinished;
+    }
+
+    /**
+     * Get the highest run id in the journal, new runs need to use higher ones
+     * @return The highest id
+     */
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Get the identity of a sender that can be found again after a restart
+     * @param sender The sender
+     * @return <tt>console</tt> or the UUID of a player; <tt>null</tt> if runs of that sender can't be resumed
+     */
+    public static String getSenderId(CommandSender sender) {
+        if (sender instanceof ConsoleCommandSender) {
+            return "console";
+        } else if (sender instanceof Player) {
+            return ((Player) sender).getUniqueId().toString();
+        }
+        return null;
+    }
+
+    /**
+     * Record that a run started
+     * @param run      The run
+     * @param cursor   The index of the next entry
+     * @param position The elapsed time of the run in milliseconds
+     * @param paused   Whether or not the run is paused
+     */
+    void start(ScriptRun run, int cursor, long position, boolean paused) {
+        if (!closed) {
+            Entry entry = new Entry(run.getId(), run.getScript().getName(), run.getSnapshot().getVersion(),
+                    run.getSnapshot().getTimeline().getFingerprint(), getSenderId(run.getSender()), run.getStartTime(),
+                    new HashMap<>(run.getVariables()), new HashMap<>(run.getReplacements()));
+            entry.cursor = cursor;
+            entry.position = position;
+            entry.paused = paused;
+            queue.add(new Record(START, run.getId(), entry, cursor, position, paused));
+        }
+    }
+
+    /**
+     * Record the progress of a run
+     * @param id       The id of the run
+     * @param cursor   The index of the next entry
+     * @param position The elapsed time of the run in milliseconds
+     * @param paused   Whether or not the run is paused
+     */
+    void progress(int id, int cursor, long position, boolean paused) {
+        if (!closed) {
+            queue.add(new Record(PROGRESS, id, null, cursor, position, paused));
+        }
+    }
+
+    /**
+     * Record that a run ended and should not be resumed
+     * @param id The id of the run
+     */
+    void end(int id) {
+        if (!closed) {
+            queue.add(new Record(END, id, null, 0, 0, false));
+        }
+    }
+
+    /**
+     * Keep a run of a player who is offline until they join
+     * @param player The UUID of the player
+     * @param entry  The Entry of the run
+     */
+    void waitFor(UUID player, Entry entry) {
+        waiting.computeIfAbsent(player, k -> new ArrayList<>()).add(entry);
+    }
+
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        List<Entry> entries = waiting.remove(event.getPlayer().getUniqueId());
+        if (entries != null && !closed) {
+            for (Entry entry : entries) {
+                plugin.getScriptManager().resumeRun(entry);
+            }
+        }
+    }
+
+    /**
+     * Stop listening for joins, write all queued records and stop the writer
+     */
+    public void close() {
+        closed = true;
+        HandlerList.unregisterAll(this);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        write();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Append the queued records and sync the file, runs on the writer thread
+     */
+    private synchronized void write() {
+        Record record;
+        batch.reset();
+        DataOutputStream out = new DataOutputStream(batch);
+        try {
+            while ((record = queue.poll()) != null) {
+                apply(record);
+                encode(out, record);
+            }
+            if (batch.size() == 0) {
+                return;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            size += batch.size();
+            failed = false;
+        } catch (IOException e) {
+            if (!failed) {
+                plugin.getLogger().log(Level.WARNING, "Could not write the run journal, runs might not be resumed correctly!", e);
+                failed = true;
+            }
+        }
+        if (size > COMPACT_SIZE) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the state of the unfinished runs
+     */
+    private synchronized void compact() {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            batch.reset();
+            DataOutputStream out = new DataOutputStream(batch);
+            for (Entry entry : entries.values()) {
+                encode(out, new Record(START, entry.id, entry, entry.cursor, entry.position, entry.paused));
+            }
+            try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    tempChannel.write(buffer);
+                }
+                tempChannel.force(false);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            size = batch.size();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not compact the run journal", e);
+        }
+    }
+
+    private void apply(Record record) {
+        if (record.type == START) {
+            entries.put(record.id, record.entry);
+        } else if (record.type == END) {
+            entries.remove(record.id);
+        } else {
+            Entry entry = entries.get(record.id);
+            if (entry != null) {
+                entry.cursor = record.cursor;
+                entry.position = record.position;
+                entry.paused = record.paused;
+            }
+        }
+    }
+
+    /**
+     * Read all complete records, a partially written one at the end gets ignored
+     */
+    private List<Record> read() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (!file.exists()) {
+            return records;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int valid = 0;
+        try {
+            while (valid < bytes.length) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                if (length < 0 || length > bytes.length - valid - 8) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, valid + 8, length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(decode(new DataInputStream(new ByteArrayInputStream(bytes, valid + 8, length))));
+                in.skipBytes(length);
+                valid += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Partially written record
+        }
+        if (valid < bytes.length) {
+            plugin.getLogger().warning("Ignored " + (bytes.length - valid) + " bytes of incomplete records at the end of the run journal");
+        }
+        return records;
+    }
+
+    private static void encode(DataOutputStream out, Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(record.type);
+        payload.writeInt(record.id);
+        if (record.type == START) {
+            Entry entry = record.entry;
+            CompiledCache.writeString(payload, entry.script);
+            payload.writeLong(entry.version);
+            payload.writeLong(entry.fingerprint);
+            CompiledCache.writeString(payload, entry.sender);
+            payload.writeLong(entry.startTime);
+            writeMap(payload, entry.variables);
+            writeMap(payload, entry.replacements);
+        }
+        if (record.type != END) {
+            payload.writeInt(record.cursor);
+            payload.writeLong(record.position);
+            payload.writeBoolean(record.paused);
+        }
+        payload.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+    }
+
+    private static Record decode(DataInput in) throws IOException {
+        byte type = in.readByte();
+        int id = in.readInt();
+        Entry entry = null;
+        if (type == START) {
+            entry = new Entry(id, CompiledCache.readString(in), in.readLong(), in.readLong(),
+                    CompiledCache.readString(in), in.readLong(), readMap(in), readMap(in));
+        }
+        if (type == END) {
+            return new Record(type, id, null, 0, 0, false);
+        }
+        Record record = new Record(type, id, entry, in.readInt(), in.readLong(), in.readBoolean());
+        if (entry != null) {
+            entry.cursor = record.cursor;
+            entry.position = record.position;
+            entry.paused = record.paused;
+        }
+        return record;
+    }
+
+    private static void writeMap(DataOutput out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            CompiledCache.writeString(out, e.getKey());
+            CompiledCache.writeString(out, e.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInput in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(CompiledCache.readString(in), CompiledCache.readString(in));
+        }
+        return map;
+    }
+
+    private static class Record {
+        private final byte type;
+        private final int id;
+        private final Entry entry;
+        private final int cursor;
+        private final long position;
+        private final boolean paused;
+
+        private Record(byte type, int id, Entry entry, int cursor, long position, boolean paused) {
+            this.type = type;
+            this.id = id;
+            this.entry = entry;
+            this.cursor = cursor;
+            this.position = position;
+            this.paused = paused;
+        }
+    }
+
+    /**
+     * The recorded state of a run
+     */
+    public static class Entry {
+        private final int id;
+        private final String script;
+        private final long version;
+        private final long fingerprint;
+        private final String sender;
+        private final long startTime;
+        private final Map<String, String> variables;
+        private final Map<String, String> replacements;
+        private int cursor = 0;
+        private long position = 0;
+        private boolean paused = false;
+
+        private Entry(int id, String script, long version, long fingerprint, String sender, long startTime, Map<String, String> variables, Map<String, String> replacements) {
+            this.id = id;
+            this.script = script;
+            this.version = version;
+            this.fingerprint = fingerprint;
+            this.sender = sender;
+            this.startTime = startTime;
+            this.variables = variables;
+            this.replacements = replacements;
+        }
+
+        /**
+         * @return The id of the run in the session it was started in
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return The name of the script
+         */
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * @return The version of the script that the run used
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The fingerprint of the timeline that the run used, see {@link Timeline#getFingerprint()}
+         */
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return The identity of the sender, see {@link #getSenderId(CommandSender)}
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * @return The unix timestamp in milliseconds when the run was started
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return The variables that the run was started with
+         */
+        public Map<String, String> getVariables() {
+            return variables;
+        }
+
+        /**
+         * @return All variable values of the run including the ones of the sender
+         */
+        public Map<String, String> getReplacements() {
+            return replacements;
+        }
+
+        /**
+         * @return The index of the next entry that wasn't dispatched yet
+         */
+        public int getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return The elapsed time of the run in milliseconds
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return Whether or not the run was paused
+         */
+        public boolean isPaused() {
+            return paused;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.themoep.timedscripts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Keeps track of the lazily loaded scripts whose commands are in memory and evicts
+ * the least recently used ones when their combined size exceeds the capacity.
+ * The size of a script is the amount of its entries and commands.
+ */
+public class ScriptCache {
+    private final long capacity;
+    private final LinkedHashMap<TimedScript, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity The maximum combined size of all loaded scripts
+     */
+    public ScriptCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Mark a script as used, adds it if it isn't tracked yet and evicts others if necessary
+     * @param script   The script
+     * @param snapshot The script's current snapshot
+     */
+    synchronized void touch(TimedScript script, TimedScript.Snapshot snapshot) {
+        int scriptWeight = getWeight(snapshot);
+        Integer previous = weights.put(script, scriptWeight);
+        weight += scriptWeight - (previous != null ? previous : 0);
+        if (weight <= capacity || previous != null && previous == scriptWeight) {
+            return;
+        }
+        for (Map.Entry<TimedScript, Integer> entry : new ArrayList<>(weights.entrySet())) {
+            if (weight <= capacity) {
+                break;
+            }
+            // Scripts with unsaved edits can't be evicted, they can't be read from the file
+            if (entry.getKey() != script && entry.getKey().evict()) {
+                weights.remove(entry.getKey());
+                weight -= entry.getValue();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Stop tracking a script, e.g. because it got removed or replaced
+     * @param script The script
+     */
+    synchronized void remove(TimedScript script) {
+        Integer previous = weights.remove(script);
+        if (previous != null) {
+            weight -= previous;
+        }
+    }
+
+    private static int getWeight(TimedScript.Snapshot snapshot) {
+        return 1 + snapshot.getTimeline().size() + snapshot.getTimeline().getCommandCount();
+    }
+
+    /**
+     * Get the amount of scripts whose commands are loaded
+     * @return The amount of loaded scripts
+     */
+    public synchronized int getLoaded() {
+        return weights.size();
+    }
+
+    /**
+     * Get the combined size of all loaded scripts
+     * @return The size in entries and commands
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Get the maximum combined size of all loaded scripts
+     * @return The capacity in entries and commands
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the amount of times a script was evicted
+     * @return The amount of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
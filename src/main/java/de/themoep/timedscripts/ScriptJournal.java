@@ -0,0 +1,301 @@
+package de.themoep.timedscripts;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * The edits of a script that were appended next to its file instead of rewriting it.
+ * Every record contains the new commands of one entry and the script version after the edit.
+ * The script file stores the version it was written at as its revision, records up to that
+ * revision are already contained in it and get dropped when the journal is compacted.
+ */
+public class ScriptJournal {
+    private final File file;
+    private int size = -1;
+
+    /**
+     * @param scriptFile The file of the script
+     */
+    public ScriptJournal(File scriptFile) {
+        this.file = new File(scriptFile.getParentFile(), scriptFile.getName() + ".journal");
+    }
+
+    /**
+     * Append the new state of an entry
+     * @param sequence The version of the script after the edit
+     * @param time     The time of the entry in seconds
+     * @param commands The commands of the entry; <tt>null</tt> or empty if it got removed
+     * @throws IOException When the journal could not be written
+     */
+    public synchronized void append(long sequence, double time, List<TimedCommand> commands) throws IOException {
+        ByteBuffer record = encode(new Record(sequence, time, commands != null ? commands : Collections.<TimedCommand>emptyList()));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+        size = getSize() + 1;
+    }
+
+    /**
+     * Apply the records that are newer than the script file to its timeline
+     * @param timeline The timeline read from the script file
+     * @param revision The revision of the script file
+     * @return The Replay with the resulting timeline and version
+     * @throws IOException When the journal could not be read
+     */
+    public synchronized Replay replay(Timeline timeline, long revision) throws IOException {
+        long version = revision;
+        int applied = 0;
+        List<Record> records = new ArrayList<>();
+        long dropped = read(records, true);
+        for (Record record : records) {
+            if (record.sequence > revision) {
+                timeline = timeline.with(record.time, record.commands);
+                version = Math.max(version, record.sequence);
+                applied++;
+            }
+        }
+        size = records.size();
+        return new Replay(timeline, version, applied, dropped);
+    }
+
+    /**
+     * Remove the records that are contained in the script file.
+     * Deletes the journal if no newer records are left.
+     * @param revision The revision the script file was written at
+     * @throws IOException When the journal could not be rewritten
+     */
+    public synchronized void compact(long revision) throws IOException {
+        if (!file.exists()) {
+            size = 0;
+            return;
+        }
+        List<Record> records = new ArrayList<>();
+        read(records, false);
+        records.removeIf(record -> record.sequence <= revision);
+        if (records.isEmpty()) {
+            delete();
+            return;
+        }
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : records) {
+                ByteBuffer buffer = encode(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        size = records.size();
+    }
+
+    /**
+     * Delete the journal
+     * @throws IOException When the journal could not be deleted
+     */
+    public synchronized void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        size = 0;
+    }
+
+    /**
+     * Get the amount of records in the journal
+     * @return The amount of records, including those that are contained in the script file already
+     */
+    public synchronized int getSize() {
+        if (size < 0) {
+            try {
+                List<Record> records = new ArrayList<>();
+                read(records, false);
+                size = records.size();
+            } catch (IOException e) {
+                size = 0;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the file the journal is stored in
+     * @return The journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read all complete records. A record that was only partially written,
+     * e.g. because the server crashed, and everything after it is ignored.
+     * @param records  The list to add the records to
+     * @param truncate Whether to cut the incomplete part off the file. Only done when loading
+     *                 the script as another instance for the same file might be appending otherwise.
+     * @return The amount of bytes after the last complete record
+     * @throws IOException When the journal could not be read
+     */
+    private long read(List<Record> records, boolean truncate) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long length = file.length();
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            while (valid < length) {
+                int recordLength = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                if (recordLength < 0 || recordLength > length - valid - 8) {
+                    break;
+                }
+                byte[] bytes = new byte[recordLength];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(decode(bytes));
+                valid += 8 + recordLength;
+            }
+        } catch (EOFException e) {
+            // Partially written record
+        }
+        if (truncate && valid < length) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return length - valid;
+    }
+
+    private static ByteBuffer encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.sequence);
+        out.writeDouble(record.time);
+        out.writeInt(record.commands.size());
+        for (TimedCommand command : record.commands) {
+            CompiledCache.writeString(out, command.toString());
+        }
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        // Called through Buffer as the ByteBuffer override doesn't exist on Java 8
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private static Record decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long sequence = in.readLong();
+        double time = in.readDouble();
+        int count = in.readInt();
+        List<TimedCommand> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            commands.add(new TimedCommand(CompiledCache.readString(in)));
+        }
+        return new Record(sequence, time, commands);
+    }
+
+    private static class Record {
+        private final long sequence;
+        private final double time;
+        private final List<TimedCommand> commands;
+
+        private Record(long sequence, double time, List<TimedCommand> commands) {
+            this.sequence = sequence;
+            this.time = time;
+            this.commands = commands;
+        }
+    }
+
+    /**
+     * The result of replaying a journal over a script file
+     */
+    public static class Replay {
+        private final Timeline timeline;
+        private final long version;
+        private final int applied;
+        private final long dropped;
+
+        private Replay(Timeline timeline, long version, int applied, long dropped) {
+            this.timeline = timeline;
+            this.version = version;
+            this.applied = applied;
+            this.dropped = dropped;
+        }
+
+        /**
+         * @return The timeline with the edits of the journal applied
+         */
+        public Timeline getTimeline() {
+            return timeline;
+        }
+
+        /**
+         * @return The version of the script after the last applied edit
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The amount of edits that were applied
+         */
+        public int getApplied() {
+            return applied;
+        }
+
+        /**
+         * @return The amount of bytes of a partially written record that were cut off
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+}
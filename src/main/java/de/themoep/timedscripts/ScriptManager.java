@@ -7,21 +7,34 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Entity;
 import org.bukkit.permissions.Permission;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 /**
  * TimedScripts
@@ -41,17 +54,142 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ScriptManager {
     private final TimedScripts plugin;
-    private Map<String, TimedScript> scriptMap = new HashMap<String, TimedScript>();
-    private Map<String, String> globals = new HashMap<String, String>();
+    private final AtomicReference<Registry> registry = new AtomicReference<>(new Registry(0, new ConcurrentHashMap<>()));
+    private final Map<String, String> globals = new ConcurrentHashMap<>();
 
-    private Map<TimerTask, String> timerTasks = new ConcurrentHashMap<>();
-    private File scriptFolder;
+    private final CommandDispatcher dispatcher;
+    private final ScriptScheduler scheduler;
+    private final ScriptSaver saver;
+    private volatile ScriptSettings defaultSettings = new ScriptSettings(CommandDispatcher.OverflowPolicy.DEFER, 0, ScriptSettings.LimitPolicy.REJECT, 10, ScriptSettings.RenderMode.EAGER, false);
+    private volatile Map<String, ScriptSettings> scriptSettings = new HashMap<>();
+
+    private final AtomicInteger runIds = new AtomicInteger();
+    private final NavigableMap<Integer, ScriptRun> runs = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<ScriptRun>> runsByScript = new ConcurrentHashMap<>();
+    private final Map<String, Set<ScriptRun>> runsBySender = new ConcurrentHashMap<>();
+    private final Object runLock = new Object();
+    private final Deque<ScriptRun> runQueue = new ArrayDeque<>();
+    private int activeRuns = 0;
+    private int globalRunLimit = 0;
+    private final AtomicLong rejectedRuns = new AtomicLong();
+    private volatile File scriptFolder;
+    private ExecutorService loader = null;
+    private volatile ScriptCache cache = null;
+    private volatile CompiledCache compiled = null;
+    private ScriptWatcher watcher = null;
+    private volatile RunJournal runJournal = null;
+    private final Map<String, ScriptMetrics> metrics = new ConcurrentHashMap<>();
+    private BukkitTask statsTask = null;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
 
     public ScriptManager(TimedScripts plugin) {
         this.plugin = plugin;
+        dispatcher = new CommandDispatcher(plugin);
+        scheduler = new ScriptScheduler(plugin, dispatcher);
+        saver = new ScriptSaver(plugin);
+        scheduler.start();
+    }
+
+    /**
+     * Load the timing, dispatch and limit settings from the config
+     */
+    public void loadSettings() {
+        ScriptScheduler.TimingMode timingMode = Utils.getEnum(plugin.getLogger(), ScriptScheduler.TimingMode.class, plugin.getConfig().getString("timing.mode"), ScriptScheduler.TimingMode.REALTIME);
+        ScriptScheduler.CatchUpPolicy catchUp = Utils.getEnum(plugin.getLogger(), ScriptScheduler.CatchUpPolicy.class, plugin.getConfig().getString("timing.catchup"), ScriptScheduler.CatchUpPolicy.BURST);
+        scheduler.setTiming(timingMode, catchUp, plugin.getConfig().getLong("timing.max-lateness", 20));
+
+        saver.setDelay(plugin.getConfig().getLong("saving.delay", 1000));
+        saver.setJournaling(plugin.getConfig().getBoolean("saving.journal", false), plugin.getConfig().getInt("saving.compact-after", 100));
+        dispatcher.setBudget(plugin.getConfig().getLong("dispatch.budget", 10000000));
+        dispatcher.getProfiler().setLimits(plugin.getConfig().getLong("profiler.threshold", 25000000), plugin.getConfig().getInt("profiler.worst-ticks", 10));
+        dispatcher.setMode(Utils.getEnum(plugin.getLogger(), CommandDispatcher.DispatchMode.class, plugin.getConfig().getString("dispatch.mode"), CommandDispatcher.DispatchMode.SERVER));
+        globalRunLimit = plugin.getConfig().getInt("limits.global", 0);
+        ScriptSettings defaultSettings = new ScriptSettings(
+                Utils.getEnum(plugin.getLogger(), CommandDispatcher.OverflowPolicy.class, plugin.getConfig().getString("dispatch.overflow"), CommandDispatcher.OverflowPolicy.DEFER),
+                plugin.getConfig().getInt("limits.per-script", 0),
+                Utils.getEnum(plugin.getLogger(), ScriptSettings.LimitPolicy.class, plugin.getConfig().getString("limits.policy"), ScriptSettings.LimitPolicy.REJECT),
+                plugin.getConfig().getInt("limits.queue-size", 10),
+                Utils.getEnum(plugin.getLogger(), ScriptSettings.RenderMode.class, plugin.getConfig().getString("dispatch.render"), ScriptSettings.RenderMode.EAGER),
+                plugin.getConfig().getBoolean("resume.resumable", false)
+        );
+        Map<String, ScriptSettings> scriptSettings = new HashMap<>();
+        ConfigurationSection scriptsSection = plugin.getConfig().getConfigurationSection("scripts");
+        if (scriptsSection != null) {
+            for (String name : scriptsSection.getKeys(false)) {
+                scriptSettings.put(name.toLowerCase(), new ScriptSettings(plugin.getLogger(), scriptsSection.getConfigurationSection(name), defaultSettings));
+            }
+        }
+        this.defaultSettings = defaultSettings;
+        this.scriptSettings = scriptSettings;
+
+        synchronized (this) {
+            if (statsTask != null) {
+                statsTask.cancel();
+                statsTask = null;
+            }
+            long interval = plugin.getConfig().getLong("stats.dump-interval", 0) * 20;
+            if (interval > 0) {
+                statsTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, () -> {
+                    try {
+                        dumpMetrics();
+                    } catch (IOException e) {
+                        plugin.getLogger().log(Level.WARNING, "Could not write the script stats!", e);
+                    }
+                }, interval, interval);
+            }
+        }
+    }
+
+    /**
+     * Get the metrics of a script. They are kept by name so they stay when a script gets reloaded.
+     * @param script The script
+     * @return The ScriptMetrics of the script
+     */
+    public ScriptMetrics getMetrics(TimedScript script) {
+        return metrics.computeIfAbsent(script.getName().toLowerCase(), k -> new ScriptMetrics(script.getName()));
+    }
+
+    /**
+     * Get the metrics of all scripts that were run since the plugin was enabled
+     * @return The ScriptMetrics
+     */
+    public Collection<ScriptMetrics> getMetrics() {
+        return Collections.unmodifiableCollection(metrics.values());
+    }
+
+    /**
+     * Write the metrics of all scripts to the stats.csv file in the plugin folder
+     * @return The file that was written
+     * @throws IOException When the file could not be written
+     */
+    public File dumpMetrics() throws IOException {
+        File file = new File(plugin.getDataFolder(), "stats.csv");
+        List<ScriptMetrics> list = new ArrayList<>(metrics.values());
+        list.sort(Comparator.comparing(m -> m.getName().toLowerCase()));
+        ScriptMetrics.write(file, list);
+        return file;
+    }
+
+    /**
+     * Get the settings of a script
+     * @param script The script
+     * @return The ScriptSettings of that script
+     */
+    public ScriptSettings getSettings(TimedScript script) {
+        return scriptSettings.getOrDefault(script.getName().toLowerCase(), defaultSettings);
     }
 
-    public void loadScripts() {
+    /**
+     * Load all scripts from the scripts folder into a new registry and publish it in one step.
+     * Scripts whose files don't exist anymore are removed, scripts that are added or loaded
+     * while this is running are kept. The files are parsed in parallel on the loader threads,
+     * registering the permissions and publishing the scripts happens on the main thread.
+     * Has to be called on the main thread.
+     * @return A future that completes on the main thread once the loaded scripts are available
+     */
+    public CompletableFuture<Void> loadScripts() {
+        long started = System.nanoTime();
+        loadSettings();
         ConfigurationSection globalSection = plugin.getConfig().getConfigurationSection("globalvariables");
         if (globalSection != null) {
             for (String name : globalSection.getKeys(false)) {
@@ -66,30 +204,268 @@ public class ScriptManager {
             } else {
                 plugin.getLogger().severe("Failed to create scripts folder!");
                 plugin.getServer().getPluginManager().disablePlugin(plugin);
-                return;
+                return failedLoad(new IOException("Failed to create scripts folder!"));
             }
         }
         if (!scriptFolder.isDirectory()) {
             plugin.getLogger().severe("Scripts folder is not a directory. Wat?");
             plugin.getServer().getPluginManager().disablePlugin(plugin);
-            return;
+            return failedLoad(new IOException("Scripts folder is not a directory!"));
         }
+        updateWatcher();
+        List<RunJournal.Entry> unfinished = updateRunJournal();
         File[] scriptFiles = scriptFolder.listFiles((dir, name) -> !name.startsWith("-") && name.endsWith(".txt"));
         if (scriptFiles == null || scriptFiles.length == 0) {
             plugin.getLogger().info("No script files in scripts folder found!");
-            return;
+            scriptFiles = new File[0];
         }
+
+        // The old scripts get replaced completely so they don't need to stay in the cache
+        ScriptCache cache = plugin.getConfig().getBoolean("loading.lazy", false) ? new ScriptCache(plugin.getConfig().getLong("loading.cache-size", 10000)) : null;
+        this.cache = cache;
+        compiled = plugin.getConfig().getBoolean("loading.compiled", false) ? new CompiledCache(plugin.getLogger(), new File(plugin.getDataFolder(), "compiled")) : null;
+
+        ExecutorService loader = getLoader();
+        List<CompletableFuture<TimedScript>> futures = new ArrayList<>(scriptFiles.length);
         for (File file : scriptFiles) {
+            futures.add(CompletableFuture.supplyAsync(() -> readScript(file, cache), loader));
+        }
+        CompletableFuture<Void> load = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenAcceptAsync(v -> {
+            ConcurrentHashMap<String, TimedScript> scripts = new ConcurrentHashMap<>();
+            for (CompletableFuture<TimedScript> future : futures) {
+                TimedScript script = future.join();
+                if (script != null) {
+                    registerPermissions(script);
+                    scripts.put(script.getName().toLowerCase(), script);
+                }
+            }
+            publish(scripts, started);
+        }, this::runOnMain);
+        load.whenComplete((v, e) -> {
+            if (e != null) {
+                plugin.getLogger().log(Level.SEVERE, "Error while loading scripts!", e);
+            }
+            ready.complete(null);
+        });
+        if (!unfinished.isEmpty()) {
+            load.thenRun(() -> resumeRuns(unfinished));
+        }
+        return load;
+    }
+
+    /**
+     * Start or stop watching the scripts folder according to the config
+     */
+    private synchronized void updateWatcher() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        if (plugin.getConfig().getBoolean("watcher.enabled", false)) {
+            try {
+                watcher = new ScriptWatcher(plugin, this, scriptFolder, plugin.getConfig().getLong("watcher.delay", 500));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not watch the scripts folder for changes!", e);
+            }
+        }
+    }
+
+    /**
+     * Start or stop the journal of active runs according to the config
+     * @return The runs from the previous session that should be resumed
+     */
+    private synchronized List<RunJournal.Entry> updateRunJournal() {
+        boolean enabled = plugin.getConfig().getBoolean("resume.enabled", false);
+        if (!enabled && runJournal != null) {
+            runJournal.close();
+            runJournal = null;
+        } else if (enabled && runJournal == null) {
             try {
-                loadScript(file);
-            } catch (FileNotFoundException e) {
-                plugin.getLogger().severe("Script " + file.getName() + " not found in scripts folder? Where did it go?");
-                e.printStackTrace();
+                RunJournal journal = new RunJournal(plugin, new File(plugin.getDataFolder(), "runs.journal"), plugin.getConfig().getLong("resume.interval", 1000));
+                plugin.getServer().getPluginManager().registerEvents(journal, plugin);
+                // Ids of runs from the previous session that didn't end must not be reused
+                runIds.accumulateAndGet(journal.getMaxId(), Math::max);
+                runJournal = journal;
+                return journal.getUnfinished();
             } catch (IOException e) {
-                plugin.getLogger().severe("Error while loading script " + file.getName() + "!");
-                e.printStackTrace();
+                plugin.getLogger().log(Level.SEVERE, "Could not read the run journal, runs will not be resumed!", e);
             }
         }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Continue the runs that didn't end in the previous session. Has to be called on the main thread.
+     * @param entries The Entries of the runs
+     */
+    private void resumeRuns(List<RunJournal.Entry> entries) {
+        int resumed = 0;
+        for (RunJournal.Entry entry : entries) {
+            if (resumeRun(entry)) {
+                resumed++;
+            }
+        }
+        plugin.getLogger().info("Resumed " + resumed + " of " + entries.size() + " runs from before the restart");
+    }
+
+    /**
+     * Continue a run from the previous session at the entry after the last one that was dispatched.
+     * Runs of players who aren't online get resumed when they join. Has to be called on the main thread.
+     * @param entry The Entry of the run
+     * @return <tt>true</tt> if the run was resumed
+     */
+    boolean resumeRun(RunJournal.Entry entry) {
+        RunJournal journal = runJournal;
+        if (journal == null) {
+            return false;
+        }
+        if (runs.containsKey(entry.getId())) {
+            // Still running since the journal got disabled and enabled again, it just couldn't record its end
+            journal.end(entry.getId());
+            return false;
+        }
+        TimedScript script = getScript(entry.getScript());
+        String reason = null;
+        CommandSender sender = null;
+        if (script == null) {
+            reason = "the script doesn't exist anymore";
+        } else if (!getSettings(script).isResumable()) {
+            reason = "the script isn't resumable";
+        } else if (script.getTimeline().getFingerprint() != entry.getFingerprint()) {
+            reason = "the script changed since version " + entry.getVersion();
+        } else if ("console".equals(entry.getSender())) {
+            sender = plugin.getServer().getConsoleSender();
+        } else {
+            try {
+                UUID playerId = UUID.fromString(entry.getSender());
+                sender = plugin.getServer().getPlayer(playerId);
+                if (sender == null) {
+                    journal.waitFor(playerId, entry);
+                    return false;
+                }
+            } catch (IllegalArgumentException e) {
+                reason = "the sender " + entry.getSender() + " is unknown";
+            }
+        }
+        if (reason != null) {
+            plugin.getLogger().warning("Not resuming run #" + entry.getId() + " of script " + entry.getScript() + " as " + reason);
+            journal.end(entry.getId());
+            return false;
+        }
+        TimedScript.Snapshot snapshot = script.getSnapshot();
+        for (String variable : snapshot.getRequiredVariables()) {
+            if (entry.getReplacements().get(variable) == null) {
+                plugin.getLogger().warning("Not resuming run #" + entry.getId() + " of script " + entry.getScript() + " as the variable " + variable + " is missing");
+                journal.end(entry.getId());
+                return false;
+            }
+        }
+        ScriptRun run = createRun(sender, script, snapshot, entry.getVariables(), entry.getReplacements());
+        run.restore(entry.getCursor(), entry.getPosition(), entry.isPaused(), entry.getStartTime());
+        run.setJournal(journal);
+        if (submitRun(run) != run) {
+            // Keep the entry so that the run isn't lost, it can be resumed on the next start
+            plugin.getLogger().warning("Could not resume run #" + entry.getId() + " of script " + entry.getScript() + " as the run limits rejected it or coalesced it into another run");
+            return false;
+        }
+        // The resumed run got recorded under its new id
+        journal.end(entry.getId());
+        return true;
+    }
+
+    private CompletableFuture<Void> failedLoad(Throwable e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        ready.complete(null);
+        return future;
+    }
+
+    /**
+     * Read a script file, errors get logged
+     * @param file  The file to read
+     * @param cache The cache to lazily load the commands into; <tt>null</tt> to read them directly
+     * @return The TimedScript; <tt>null</tt> if it couldn't be read
+     */
+    private TimedScript readScript(File file, ScriptCache cache) {
+        try {
+            TimedScript script = new TimedScript(plugin, file, cache, compiled);
+            script.setSaver(saver);
+            return script;
+        } catch (FileNotFoundException e) {
+            plugin.getLogger().severe("Script " + file.getName() + " not found in scripts folder? Where did it go?");
+            e.printStackTrace();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Error while loading script " + file.getName() + "!");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private synchronized ExecutorService getLoader() {
+        if (loader == null) {
+            int threads = plugin.getConfig().getInt("loading.threads", 0);
+            if (threads <= 0) {
+                threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+            }
+            AtomicInteger threadIds = new AtomicInteger();
+            loader = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, plugin.getName() + " Loader #" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return loader;
+    }
+
+    /**
+     * Run something on the main thread, directly if this already is the main thread
+     * @param runnable The Runnable to run
+     */
+    private void runOnMain(Runnable runnable) {
+        if (plugin.getServer().isPrimaryThread()) {
+            runnable.run();
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin, runnable);
+        }
+    }
+
+    /**
+     * Check whether or not the scripts were loaded after the plugin got enabled
+     * @return <tt>true</tt> if the first load finished
+     */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * Replace the registry with a freshly loaded one
+     * @param scripts The loaded scripts
+     * @param started The {@link System#nanoTime()} when the loading started
+     */
+    private void publish(ConcurrentHashMap<String, TimedScript> scripts, long started) {
+        Registry current;
+        Registry fresh;
+        do {
+            current = registry.get();
+            Map<String, TimedScript> merged = new ConcurrentHashMap<>(scripts);
+            for (TimedScript script : current.scripts.values()) {
+                // Keep scripts that got created or loaded on their own after we started
+                if (script.getLoadTime() - started > 0) {
+                    merged.merge(script.getName().toLowerCase(), script, (a, b) -> a.getLoadTime() - b.getLoadTime() > 0 ? a : b);
+                }
+            }
+            // Scripts might have been deleted after we read them
+            merged.values().removeIf(script -> !script.getFile().exists());
+            fresh = new Registry(current.epoch + 1, merged);
+        } while (!registry.compareAndSet(current, fresh));
+
+        int pruned = 0;
+        for (String name : current.scripts.keySet()) {
+            if (!fresh.scripts.containsKey(name)) {
+                pruned++;
+            }
+        }
+        plugin.getLogger().info("Loaded " + fresh.scripts.size() + " scripts" + (pruned > 0 ? ", removed " + pruned + " that don't exist anymore" : ""));
     }
 
     public TimedScript loadScript(String name) {
@@ -106,15 +482,24 @@ public class ScriptManager {
     }
 
     public TimedScript loadScript(File file) throws IOException {
-        TimedScript script = new TimedScript(plugin, file);
+        TimedScript script = new TimedScript(plugin, file, cache, compiled);
+        script.setSaver(saver);
+        runOnMain(() -> registerPermissions(script));
+        addScript(script);
+        return script;
+    }
+
+    /**
+     * Register the run permissions of a script. Has to be called on the main thread.
+     * @param script The script
+     */
+    private void registerPermissions(TimedScript script) {
         try {
             plugin.getServer().getPluginManager().addPermission(new Permission("TimedScripts.command.run." + script.getName().toLowerCase()));
             plugin.getServer().getPluginManager().addPermission(new Permission("TimedScripts.command.runwithvars." + script.getName().toLowerCase()));
         } catch (IllegalArgumentException ignored) {
             // Permission already registered
         }
-        addScript(script);
-        return script;
     }
 
     public String setGlobalVariable(String name, String value) {
@@ -126,31 +511,106 @@ public class ScriptManager {
     }
 
     public TimedScript addScript(TimedScript script) {
-        return scriptMap.put(script.getName().toLowerCase(), script);
+        Registry current = registry.get();
+        TimedScript previous = current.scripts.put(script.getName().toLowerCase(), script);
+        if (previous != null && previous != script) {
+            // The new version replaces unsaved edits of the old one
+            saver.cancel(previous);
+            uncache(previous);
+        }
+        Registry latest;
+        // Also add it to a registry that got published in the meantime
+        while ((latest = registry.get()) != current) {
+            current = latest;
+            current.scripts.merge(script.getName().toLowerCase(), script, (a, b) -> a.getLoadTime() - b.getLoadTime() > 0 ? a : b);
+        }
+        return previous;
+    }
+
+    /**
+     * Remove a script from the registry without deleting its file, e.g. because the file got deleted.
+     * Runs of the script continue.
+     * @param script The script to remove
+     */
+    public void unloadScript(TimedScript script) {
+        saver.cancel(script);
+        removeScript(script);
+    }
+
+    private void removeScript(TimedScript script) {
+        uncache(script);
+        Registry current = registry.get();
+        current.scripts.remove(script.getName().toLowerCase(), script);
+        Registry latest;
+        while ((latest = registry.get()) != current) {
+            current = latest;
+            current.scripts.remove(script.getName().toLowerCase(), script);
+        }
+    }
+
+    private void uncache(TimedScript script) {
+        ScriptCache cache = this.cache;
+        if (cache != null) {
+            cache.remove(script);
+        }
+    }
+
+    /**
+     * Get the cache of lazily loaded scripts
+     * @return The ScriptCache; <tt>null</tt> if scripts aren't loaded lazily
+     */
+    public ScriptCache getCache() {
+        return cache;
     }
 
     public TimedScript getScript(String name) {
-        return scriptMap.get(name.toLowerCase());
+        return registry.get().scripts.get(name.toLowerCase());
     }
 
-    public boolean runScript(CommandSender sender, String name) {
+    /**
+     * Get the epoch of the script registry, increased on every full reload
+     * @return The epoch; 0 if the scripts weren't loaded yet
+     */
+    public long getEpoch() {
+        return registry.get().epoch;
+    }
+
+    public ScriptRun runScript(CommandSender sender, String name) {
         return runScript(sender, name, new HashMap<>());
     }
 
-    public void runScript(CommandSender sender, TimedScript script) {
-        runScript(sender, script, new HashMap<>());
+    public ScriptRun runScript(CommandSender sender, TimedScript script) {
+        return runScript(sender, script, new HashMap<>());
     }
 
-    public boolean runScript(CommandSender sender, String name, Map<String, String> replacements) {
+    /**
+     * Run a script by its name
+     * @param sender       The sender to run the script as
+     * @param name         The name of the script
+     * @param replacements The variables to use in addition to the sender ones
+     * @return The started ScriptRun; <tt>null</tt> if the scripts are still loading, there is no script
+     *         with that name or it could not be started
+     */
+    public ScriptRun runScript(CommandSender sender, String name, Map<String, String> replacements) {
+        if (!isReady()) {
+            sender.sendMessage(ChatColor.RED + "Scripts are still loading, please try again in a moment!");
+            return null;
+        }
         TimedScript script = getScript(name);
         if (script == null) {
-            return false;
+            return null;
         }
-        runScript(sender, script, replacements);
-        return true;
+        return runScript(sender, script, replacements);
     }
 
-    public void runScript(final CommandSender sender, TimedScript script, Map<String, String> vars) {
+    /**
+     * Run a script
+     * @param sender The sender to run the script as
+     * @param script The script to run
+     * @param vars   The variables to use in addition to the sender ones
+     * @return The started ScriptRun; <tt>null</tt> if it could not be started (the sender gets informed about the reason)
+     */
+    public ScriptRun runScript(final CommandSender sender, TimedScript script, Map<String, String> vars) {
         String senderName = sender.getName();
         String senderWorld = plugin.getServer().getWorlds().get(0).getName();
         Location senderLoc = plugin.getServer().getWorlds().get(0).getSpawnLocation();
@@ -178,42 +638,280 @@ public class ScriptManager {
         replacements.put("senderlocation", senderLoc.getBlockX() + " " + senderLoc.getBlockY() + " " + senderLoc.getBlockZ());
         replacements.putAll(vars);
 
-        Timer timer = new Timer();
-        Map<Double, List<TimedCommand>> commands = script.getCommands();
-        for (Map.Entry<Double, List<TimedCommand>> entry : commands.entrySet()) {
-            final List<String> commandList = new ArrayList<String>();
-            for (TimedCommand command : entry.getValue()) {
-                try {
-                    commandList.add(command.getCommand(replacements));
-                } catch (TimedCommand.MissingVariableException e) {
-                    sender.sendMessage(ChatColor.RED + "Error while executing script " + script.getName() + "! " + ChatColor.YELLOW + e.getMessage());
-                    return;
-                }
+        // Pin the current version so edits during the run don't affect it
+        TimedScript.Snapshot snapshot = script.getSnapshot();
+        for (String variable : snapshot.getRequiredVariables()) {
+            if (replacements.get(variable) == null) {
+                sender.sendMessage(ChatColor.RED + "Error while executing script " + script.getName() + "! " + ChatColor.YELLOW + "No value nor defualt value set for variable " + variable);
+                return null;
             }
+        }
 
-            if (entry.getKey() == 0) {
-                for (String command : commandList) {
-                    plugin.getServer().dispatchCommand(sender, command);
-                }
-            } else {
+        ScriptRun run = createRun(sender, script, snapshot, vars, replacements);
+        RunJournal journal = runJournal;
+        if (journal != null && getSettings(script).isResumable() && RunJournal.getSenderId(sender) != null) {
+            run.setJournal(journal);
+        }
+        return submitRun(run);
+    }
 
-                TimerTask task = new TimerTask() {
-                    @Override
-                    public void run() {
-                        new BukkitRunnable() {
-                            public void run() {
-                                for (String command : commandList) {
-                                    plugin.getServer().dispatchCommand(sender, command);
-                                }
+    /**
+     * Create a run of a specific version of a script
+     * @param sender       The sender to run the script as
+     * @param script       The script to run
+     * @param snapshot     The version of the script
+     * @param vars         The variables that the run was started with
+     * @param replacements All variable values of the run, checked to contain all required variables
+     * @return The ScriptRun, not started yet
+     */
+    private ScriptRun createRun(CommandSender sender, TimedScript script, TimedScript.Snapshot snapshot, Map<String, String> vars, Map<String, String> replacements) {
+        Timeline timeline = snapshot.getTimeline();
+        long[] offsets = new long[timeline.size()];
+        List<TimedCommand>[] entries = Utils.newListArray(timeline.size());
+        for (int i = 0; i < timeline.size(); i++) {
+            offsets[i] = scheduler.toOffset(timeline.getTime(i));
+            entries[i] = timeline.getCommands(i);
+        }
+
+        ScriptSettings settings = getSettings(script);
+        List<String>[] rendered = null;
+        if (settings.getRenderMode() == ScriptSettings.RenderMode.EAGER) {
+            rendered = Utils.newListArray(entries.length);
+            ScriptMetrics scriptMetrics = getMetrics(script);
+            for (int i = 0; i < entries.length; i++) {
+                rendered[i] = renderEntry(entries[i], replacements, scriptMetrics);
+            }
+        }
+
+        return new ScriptRun(runIds.incrementAndGet(), this, script, snapshot, sender, vars, settings.getOverflowPolicy(), offsets, entries, rendered, replacements);
+    }
+
+    /**
+     * Render the commands of an entry. The variables need to be checked before.
+     * @param entry        The commands of the entry
+     * @param replacements The variable values
+     * @param metrics      The metrics to record the render time in
+     * @return The list of rendered command strings
+     */
+    List<String> renderEntry(List<TimedCommand> entry, Map<String, String> replacements, ScriptMetrics metrics) {
+        List<String> rendered = new ArrayList<>(entry.size());
+        for (TimedCommand command : entry) {
+            try {
+                long start = System.nanoTime();
+                rendered.add(command.getCommand(replacements));
+                metrics.rendered(System.nanoTime() - start);
+            } catch (TimedCommand.MissingVariableException e) {
+                // Can't happen as the required variables were checked before the run started
+                plugin.getLogger().severe("Error while rendering command " + command + "! " + e.getMessage());
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Start a new run while respecting the global and the script's run limit
+     * @param run The run to start
+     * @return The run that was started or queued, an existing run when coalesced; <tt>null</tt> if it was rejected
+     */
+    private ScriptRun submitRun(ScriptRun run) {
+        ScriptSettings settings = getSettings(run.getScript());
+        ScriptRun replaced = null;
+        synchronized (runLock) {
+            Set<ScriptRun> scriptRuns = runsByScript.getOrDefault(run.getScript().getName().toLowerCase(), Collections.emptySet());
+            int scriptActive = 0;
+            int scriptQueued = 0;
+            for (ScriptRun scriptRun : scriptRuns) {
+                if (scriptRun.getState() == ScriptRun.State.QUEUED) {
+                    scriptQueued++;
+                } else {
+                    scriptActive++;
+                }
+            }
+            boolean scriptFull = settings.getMaxRuns() > 0 && scriptActive >= settings.getMaxRuns();
+            boolean globalFull = globalRunLimit > 0 && activeRuns >= globalRunLimit;
+            if (scriptFull || globalFull) {
+                switch (settings.getLimitPolicy()) {
+                    case COALESCE:
+                        for (ScriptRun scriptRun : scriptRuns) {
+                            if (scriptRun.isIdentical(run)) {
+                                return scriptRun;
                             }
-                        }.runTask(plugin);
-                        timerTasks.remove(this);
+                        }
+                        break;
+                    case QUEUE:
+                        if (scriptQueued < settings.getQueueSize()) {
+                            run.setQueued();
+                            registerRun(run);
+                            runQueue.add(run);
+                            return run;
+                        }
+                        break;
+                    case REPLACE:
+                        List<ScriptRun> candidates = new ArrayList<>();
+                        for (ScriptRun active : scriptFull ? scriptRuns : runs.values()) {
+                            if (active.getState() != ScriptRun.State.QUEUED) {
+                                candidates.add(active);
+                            }
+                        }
+                        // Replace the oldest run. Its slot only counts as freed if it didn't end in the meantime.
+                        candidates.sort(Comparator.comparingInt(ScriptRun::getId));
+                        for (ScriptRun candidate : candidates) {
+                            if (candidate.replace()) {
+                                replaced = candidate;
+                                break;
+                            }
+                        }
+                        break;
+                }
+                if (replaced == null) {
+                    rejectedRuns.incrementAndGet();
+                    run.getSender().sendMessage(ChatColor.RED + "Could not start script " + run.getScript().getName() + " as too many runs are active!");
+                    return null;
+                }
+            }
+            registerRun(run);
+            activeRuns++;
+        }
+        run.start();
+        return run;
+    }
+
+    private void registerRun(ScriptRun run) {
+        runs.put(run.getId(), run);
+        runsByScript.computeIfAbsent(run.getScript().getName().toLowerCase(), k -> ConcurrentHashMap.newKeySet()).add(run);
+        runsBySender.computeIfAbsent(getSenderKey(run.getSender()), k -> ConcurrentHashMap.newKeySet()).add(run);
+    }
+
+    /**
+     * Remove a run from the registry, called by the run when it ended. Starts queued runs that fit into the limits now.
+     * @param run The run to remove
+     */
+    void unregisterRun(ScriptRun run) {
+        unregisterRun(run, true);
+    }
+
+    /**
+     * Remove a run from the registry
+     * @param run         The run to remove
+     * @param startQueued Whether to start queued runs that fit into the limits now;
+     *                    <tt>false</tt> when the run gets replaced and its slot goes to the new run
+     */
+    void unregisterRun(ScriptRun run, boolean startQueued) {
+        List<ScriptRun> toStart = new ArrayList<>();
+        synchronized (runLock) {
+            if (runs.remove(run.getId()) == null) {
+                return;
+            }
+            runsByScript.computeIfPresent(run.getScript().getName().toLowerCase(), (k, set) -> set.remove(run) && set.isEmpty() ? null : set);
+            runsBySender.computeIfPresent(getSenderKey(run.getSender()), (k, set) -> set.remove(run) && set.isEmpty() ? null : set);
+            if (!runQueue.remove(run)) {
+                activeRuns--;
+            }
+            Iterator<ScriptRun> queueIt = runQueue.iterator();
+            while (startQueued && queueIt.hasNext() && (globalRunLimit <= 0 || activeRuns < globalRunLimit)) {
+                ScriptRun queued = queueIt.next();
+                int maxRuns = getSettings(queued.getScript()).getMaxRuns();
+                if (maxRuns > 0) {
+                    int scriptActive = 0;
+                    for (ScriptRun scriptRun : runsByScript.getOrDefault(queued.getScript().getName().toLowerCase(), Collections.emptySet())) {
+                        if (scriptRun.getState() != ScriptRun.State.QUEUED) {
+                            scriptActive++;
+                        }
+                    }
+                    if (scriptActive + countScript(toStart, queued.getScript()) >= maxRuns) {
+                        continue;
                     }
-                };
-                timerTasks.put(task, script.getName().toLowerCase());
-                timer.schedule(task, (long) (entry.getKey() * 1000));
+                }
+                queueIt.remove();
+                toStart.add(queued);
+                activeRuns++;
             }
         }
+        for (ScriptRun queued : toStart) {
+            queued.start();
+        }
+    }
+
+    private int countScript(List<ScriptRun> runs, TimedScript script) {
+        int count = 0;
+        for (ScriptRun run : runs) {
+            if (run.getScript() == script) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String getSenderKey(CommandSender sender) {
+        if (sender instanceof Entity) {
+            return ((Entity) sender).getUniqueId().toString();
+        }
+        return sender.getName().toLowerCase();
+    }
+
+    /**
+     * Get the amount of runs that are waiting for a free slot
+     * @return The amount of queued runs
+     */
+    public int getQueuedRunCount() {
+        synchronized (runLock) {
+            return runQueue.size();
+        }
+    }
+
+    /**
+     * Get the amount of runs that are running or paused
+     * @return The amount of active runs
+     */
+    public int getActiveRunCount() {
+        synchronized (runLock) {
+            return activeRuns;
+        }
+    }
+
+    /**
+     * Get how many runs were rejected because of the run limits since the plugin was enabled
+     * @return The amount of rejected runs
+     */
+    public long getRejectedRunCount() {
+        return rejectedRuns.get();
+    }
+
+    /**
+     * Get a run by its id
+     * @param id The id of the run
+     * @return The ScriptRun or <tt>null</tt> if there is no active run with that id
+     */
+    public ScriptRun getRun(int id) {
+        return runs.get(id);
+    }
+
+    /**
+     * Get all active and queued runs
+     * @return A collection of all runs that were not finished or cancelled yet, ordered by their id
+     */
+    public Collection<ScriptRun> getRuns() {
+        return Collections.unmodifiableCollection(runs.values());
+    }
+
+    /**
+     * Get all active and queued runs of a script
+     * @param script The script
+     * @return A collection of the script's runs
+     */
+    public Collection<ScriptRun> getRuns(TimedScript script) {
+        Set<ScriptRun> scriptRuns = runsByScript.get(script.getName().toLowerCase());
+        return scriptRuns != null ? Collections.unmodifiableSet(scriptRuns) : Collections.emptySet();
+    }
+
+    /**
+     * Get all active and queued runs that run as a specific sender
+     * @param sender The sender
+     * @return A collection of the sender's runs
+     */
+    public Collection<ScriptRun> getRuns(CommandSender sender) {
+        Set<ScriptRun> senderRuns = runsBySender.get(getSenderKey(sender));
+        return senderRuns != null ? Collections.unmodifiableSet(senderRuns) : Collections.emptySet();
     }
 
     public boolean deleteScript(String scriptName) {
@@ -225,39 +923,117 @@ public class ScriptManager {
     }
 
     public boolean deleteScript(TimedScript script) {
+        saver.cancel(script);
         if (script.delete()) {
+            CompiledCache compiled = this.compiled;
+            if (compiled != null) {
+                compiled.delete(script.getFile());
+            }
             stopScript(script);
-            scriptMap.remove(script.getName());
+            removeScript(script);
             return true;
         }
         return false;
     }
 
+    /**
+     * Stop all runs of a script
+     * @param script The script to stop
+     * @return <tt>true</tt> if a run was stopped; <tt>false</tt> if the script wasn't running
+     */
     public boolean stopScript(TimedScript script) {
-        if (!timerTasks.containsValue(script.getName().toLowerCase())) {
-            return false;
-        }
-        Iterator<Map.Entry<TimerTask, String>> taskIt = timerTasks.entrySet().iterator();
-        while (taskIt.hasNext()) {
-            Map.Entry<TimerTask, String> entry = taskIt.next();
-            if (entry.getValue().equals(script.getName().toLowerCase())) {
-                entry.getKey().cancel();
-                taskIt.remove();
+        return stopRuns(getRuns(script)) > 0;
+    }
+
+    /**
+     * Stop a run by its id
+     * @param id The id of the run
+     * @return <tt>true</tt> if the run was stopped; <tt>false</tt> if there was no active run with that id
+     */
+    public boolean stopRun(int id) {
+        ScriptRun run = getRun(id);
+        return run != null && run.cancel();
+    }
+
+    /**
+     * Stop all runs that run as a specific sender
+     * @param sender The sender
+     * @return The amount of stopped runs
+     */
+    public int stopRuns(CommandSender sender) {
+        return stopRuns(getRuns(sender));
+    }
+
+    private int stopRuns(Collection<ScriptRun> runs) {
+        int stopped = 0;
+        for (ScriptRun run : new ArrayList<>(runs)) {
+            if (run.cancel()) {
+                stopped++;
             }
         }
-        return true;
+        return stopped;
+    }
+
+    /**
+     * Stops all active and queued runs
+     */
+    public void stopAll() {
+        stopRuns(runs.values());
     }
 
     /**
-     * Cancels all timers running
+     * Saves all edited scripts, stops all runs, drops queued commands and stops the scheduler
      */
     public void destroy() {
-        Iterator<TimerTask> taskIterator = timerTasks.keySet().iterator();
-        while (taskIterator.hasNext()) {
-            TimerTask task = taskIterator.next();
-            task.cancel();
-            taskIterator.remove();
+        saver.flush();
+        synchronized (this) {
+            if (watcher != null) {
+                watcher.stop();
+                watcher = null;
+            }
+            if (statsTask != null) {
+                statsTask.cancel();
+                statsTask = null;
+            }
+            if (runJournal != null) {
+                // Record where the runs are so that stopping them below doesn't end them in the journal
+                for (ScriptRun run : runs.values()) {
+                    run.checkpoint();
+                }
+                runJournal.close();
+                runJournal = null;
+            }
+            if (loader != null) {
+                loader.shutdownNow();
+            }
         }
+        stopAll();
+        scheduler.stop();
+        dispatcher.clear();
+    }
+
+    /**
+     * Get the dispatcher that runs the commands of scripts
+     * @return The CommandDispatcher
+     */
+    public CommandDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Get the saver that writes edited scripts in the background
+     * @return The ScriptSaver
+     */
+    public ScriptSaver getSaver() {
+        return saver;
+    }
+
+    /**
+     * Get the scheduler that runs the scripts
+     * @return The ScriptScheduler
+     */
+    public ScriptScheduler getScheduler() {
+        return scheduler;
     }
 
     /**
@@ -281,12 +1057,9 @@ public class ScriptManager {
         }
         TimedScript newScript = new TimedScript(getFolder(), name, creator);
         if (newScript.save()) {
+            newScript.setSaver(saver);
             addScript(newScript);
-            try {
-                plugin.getServer().getPluginManager().addPermission(new Permission("TimedScripts.command.run." + newScript.getName().toLowerCase()));
-                plugin.getServer().getPluginManager().addPermission(new Permission("TimedScripts.command.runwithvars." + newScript.getName().toLowerCase()));
-            } catch (IllegalArgumentException ignored) {
-            }
+            registerPermissions(newScript);
             creator.sendMessage(ChatColor.GREEN + "Created new script " + ChatColor.YELLOW + newScript.getName());
             return true;
         } else {
@@ -296,6 +1069,19 @@ public class ScriptManager {
     }
 
     public Collection<TimedScript> getScripts() {
-        return scriptMap.values();
+        return Collections.unmodifiableCollection(registry.get().scripts.values());
+    }
+
+    /**
+     * The scripts of one full load, replaced as a whole on reload
+     */
+    private static class Registry {
+        private final long epoch;
+        private final Map<String, TimedScript> scripts;
+
+        private Registry(long epoch, Map<String, TimedScript> scripts) {
+            this.epoch = epoch;
+            this.scripts = scripts;
+        }
     }
 }
@@ -0,0 +1,286 @@
+package de.themoep.timedscripts;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Counters and histograms of what the runs of a script cost. Recording only increments
+ * striped counters so it can happen on any thread without contention.
+ */
+public class ScriptMetrics {
+    // Upper bounds of the buckets of time histograms in nanoseconds
+    private static final long[] TIME_BUCKETS = {
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000, 25000000, 50000000
+    };
+    // Upper bounds of the buckets of the lateness histogram in milliseconds
+    private static final long[] LATENESS_BUCKETS = {
+            0, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000
+    };
+
+    private final String name;
+    private final LongAdder runsStarted = new LongAdder();
+    private final LongAdder runsCompleted = new LongAdder();
+    private final LongAdder runsCancelled = new LongAdder();
+    private final LongAdder commandsDropped = new LongAdder();
+    private final Histogram renderTime = new Histogram(TIME_BUCKETS);
+    private final Histogram dispatchTime = new Histogram(TIME_BUCKETS);
+    private final Histogram lateness = new Histogram(LATENESS_BUCKETS);
+
+    /**
+     * @param name The name of the script
+     */
+    public ScriptMetrics(String name) {
+        this.name = name;
+    }
+
+    void runStarted() {
+        runsStarted.increment();
+    }
+
+    void runCompleted() {
+        runsCompleted.increment();
+    }
+
+    void runCancelled() {
+        runsCancelled.increment();
+    }
+
+    void commandDropped() {
+        commandsDropped.increment();
+    }
+
+    /**
+     * Record the time it took to render a command
+     * @param nanos The time in nanoseconds
+     */
+    void rendered(long nanos) {
+        renderTime.record(nanos);
+    }
+
+    /**
+     * Record the time it took to dispatch a command on the main thread
+     * @param nanos The time in nanoseconds
+     */
+    void dispatched(long nanos) {
+        dispatchTime.record(nanos);
+    }
+
+    /**
+     * Record how late an entry was fired compared to its offset
+     * @param millis The time in milliseconds
+     */
+    void fired(long millis) {
+        lateness.record(Math.max(millis, 0));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRunsStarted() {
+        return runsStarted.sum();
+    }
+
+    public long getRunsCompleted() {
+        return runsCompleted.sum();
+    }
+
+    public long getRunsCancelled() {
+        return runsCancelled.sum();
+    }
+
+    /**
+     * @return The amount of commands that were dispatched
+     */
+    public long getCommandsDispatched() {
+        return dispatchTime.getCount();
+    }
+
+    /**
+     * @return The amount of commands that were dropped because they didn't fit into the dispatch budget
+     */
+    public long getCommandsDropped() {
+        return commandsDropped.sum();
+    }
+
+    /**
+     * @return The nanoseconds it took to render single commands
+     */
+    public Histogram getRenderTime() {
+        return renderTime;
+    }
+
+    /**
+     * @return The nanoseconds the main thread spent dispatching single commands
+     */
+    public Histogram getDispatchTime() {
+        return dispatchTime;
+    }
+
+    /**
+     * @return The milliseconds between the offset of an entry and when it was fired
+     */
+    public Histogram getLateness() {
+        return lateness;
+    }
+
+    /**
+     * Write the metrics of scripts to a CSV file, one line per script
+     * @param file    The file to write to, it gets replaced
+     * @param metrics The metrics of the scripts
+     * @throws IOException When the file could not be written
+     */
+    public static void write(File file, Collection<ScriptMetrics> metrics) throws IOException {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        long time = System.currentTimeMillis();
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("time,script,runs_started,runs_completed,runs_cancelled,commands_dispatched,commands_dropped");
+            for (String histogram : new String[]{"render_ns", "dispatch_ns", "lateness_ms"}) {
+                writer.write("," + histogram + "_count," + histogram + "_sum," + histogram + "_p50,"
+                        + histogram + "_p90," + histogram + "_p99," + histogram + "_max");
+            }
+            writer.newLine();
+            for (ScriptMetrics m : metrics) {
+                String name = m.getName();
+                if (name.contains(",") || name.contains("\"")) {
+                    name = "\"" + name.replace("\"", "\"\"") + "\"";
+                }
+                writer.write(time + "," + name + "," + m.getRunsStarted() + "," + m.getRunsCompleted() + "," + m.getRunsCancelled()
+                        + "," + m.getCommandsDispatched() + "," + m.getCommandsDropped());
+                for (Histogram histogram : new Histogram[]{m.renderTime, m.dispatchTime, m.lateness}) {
+                    writer.write("," + histogram.getCount() + "," + histogram.getSum() + "," + histogram.getPercentile(0.5)
+                            + "," + histogram.getPercentile(0.9) + "," + histogram.getPercentile(0.99) + "," + histogram.getMax());
+                }
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Counts values in buckets with fixed upper bounds. Percentiles are the upper bound
+     * of the bucket that contains them, values above the last bound use the maximum.
+     */
+    public static class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * @param bounds The inclusive upper bounds of the buckets, sorted ascending
+         */
+        public Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a value
+         * @param value The value
+         */
+        public void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * @return The amount of recorded values
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return The sum of all recorded values
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return The average of the recorded values; 0 if there are none
+         */
+        public long getMean() {
+            long count = getCount();
+            return count > 0 ? getSum() / count : 0;
+        }
+
+        /**
+         * @return The largest recorded value
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Get an estimate of a percentile
+         * @param percentile The percentile between 0 and 1
+         * @return The upper bound of the bucket containing the percentile; 0 if there are no values
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bounds[i], getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package de.themoep.timedscripts;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Parses script files line by line from a file channel. Only the current line is kept
+ * in memory besides the parsed commands. Files are read as UTF-8, files that aren't valid
+ * UTF-8 are read with the platform charset that older versions wrote them with.
+ * Problems don't stop the parsing, they are collected as {@link Diagnostic}s.
+ */
+public class ScriptParser {
+    private static final Pattern AUTHOR_PATTERN = Pattern.compile("Author: (\\w+)");
+    private static final Pattern UUID_PATTERN = Pattern.compile("(\\w{8}-\\w{4}-\\w{4}-\\w{4}-\\w{12})");
+    private static final Pattern REVISION_PATTERN = Pattern.compile("^# Revision: (\\d+)");
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final boolean headerOnly;
+
+    private String creatorName = null;
+    private UUID creatorId = null;
+    private long revision = 0;
+    private Timeline.Builder builder = new Timeline.Builder();
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+    private int lineNumber = 0;
+    private double currentTime = 0;
+    private boolean lastWasCarriageReturn = false;
+    private boolean done = false;
+
+    private ScriptParser(boolean headerOnly) {
+        this.headerOnly = headerOnly;
+    }
+
+    /**
+     * Parse a whole script file
+     * @param file The file to parse
+     * @return The Result
+     * @throws IOException When the file could not be read
+     */
+    public static Result parse(Path file) throws IOException {
+        return parse(file, false);
+    }
+
+    /**
+     * Parse the header comments at the start of a script file
+     * @param file The file to parse
+     * @return The Result without any commands
+     * @throws IOException When the file could not be read
+     */
+    public static Result parseHeader(Path file) throws IOException {
+        return parse(file, true);
+    }
+
+    private static Result parse(Path file, boolean headerOnly) throws IOException {
+        ScriptParser parser = new ScriptParser(headerOnly);
+        try {
+            parser.read(file, StandardCharsets.UTF_8, CodingErrorAction.REPORT);
+        } catch (CharacterCodingException e) {
+            int errorLine = parser.lineNumber + 1;
+            Charset fallback = getFallbackCharset();
+            parser = new ScriptParser(headerOnly);
+            parser.diagnostics.add(new Diagnostic(errorLine, 1, Diagnostic.Severity.WARNING,
+                    "Not valid UTF-8, read the file as " + fallback.name() + " instead. It will be written as UTF-8 when it gets saved."));
+            parser.read(file, fallback, CodingErrorAction.REPLACE);
+        }
+        return new Result(parser.creatorName, parser.creatorId, parser.revision, headerOnly ? Timeline.EMPTY : parser.builder.build(), parser.diagnostics);
+    }
+
+    /**
+     * Get the charset to read files that aren't UTF-8 with. Older versions wrote
+     * them with the platform charset, if that is UTF-8 too it's most likely Latin-1.
+     */
+    private static Charset getFallbackCharset() {
+        Charset charset = Charset.defaultCharset();
+        return StandardCharsets.UTF_8.equals(charset) ? StandardCharsets.ISO_8859_1 : charset;
+    }
+
+    private void read(Path file, Charset charset, CodingErrorAction errorAction) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(errorAction)
+                .onUnmappableCharacter(errorAction);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof && !done) {
+                eof = channel.read(bytes) < 0;
+                // Called through Buffer as the ByteBuffer and CharBuffer overrides don't exist on Java 8
+                ((Buffer) bytes).flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, eof);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    ((Buffer) chars).flip();
+                    accept(chars);
+                    ((Buffer) chars).clear();
+                } while (result.isOverflow() && !done);
+                bytes.compact();
+            }
+            if (!done) {
+                decoder.flush(chars);
+                ((Buffer) chars).flip();
+                accept(chars);
+                if (line.length() > 0) {
+                    endLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Split decoded characters into lines the same way {@link java.io.BufferedReader#readLine()} does
+     */
+    private void accept(CharBuffer chars) {
+        while (chars.hasRemaining() && !done) {
+            char c = chars.get();
+            if (c == '\n' && lastWasCarriageReturn) {
+                lastWasCarriageReturn = false;
+            } else if (c == '\n' || c == '\r') {
+                lastWasCarriageReturn = c == '\r';
+                endLine();
+            } else {
+                lastWasCarriageReturn = false;
+                if (c == '\uFEFF' && lineNumber == 0 && line.length() == 0) {
+                    // Byte order mark
+                    continue;
+                }
+                line.append(c);
+            }
+        }
+    }
+
+    private void endLine() {
+        lineNumber++;
+        String text = line.toString();
+        line.setLength(0);
+        if (text.startsWith("#")) {
+            parseComment(text);
+        } else if (headerOnly) {
+            done = true;
+        } else if (text.startsWith("-")) {
+            builder.add(currentTime, new TimedCommand(text.substring(1)));
+        } else if (text.contains(":")) {
+            String timeStr = text.substring(0, text.indexOf(':'));
+            try {
+                currentTime = Double.parseDouble(timeStr);
+                if (text.length() > timeStr.length() + 1) {
+                    builder.add(currentTime, new TimedCommand(text.substring(timeStr.length() + 1)));
+                }
+            } catch (NumberFormatException e) {
+                diagnostics.add(new Diagnostic(lineNumber, 1, Diagnostic.Severity.ERROR,
+                        "Expected a time in seconds, found '" + timeStr + "'. The line was ignored."));
+            }
+        } else if (!text.trim().isEmpty()) {
+            diagnostics.add(new Diagnostic(lineNumber, 1, Diagnostic.Severity.WARNING,
+                    "Expected a comment, a time or a command. The line was ignored."));
+        }
+    }
+
+    private void parseComment(String text) {
+        Matcher revisionMatcher = REVISION_PATTERN.matcher(text);
+        if (revisionMatcher.find()) {
+            try {
+                revision = Long.parseLong(revisionMatcher.group(1));
+            } catch (NumberFormatException e) {
+                diagnostics.add(new Diagnostic(lineNumber, revisionMatcher.start(1) + 1, Diagnostic.Severity.WARNING,
+                        revisionMatcher.group(1) + " is not a valid revision!"));
+            }
+            return;
+        }
+        Matcher authorMatcher = AUTHOR_PATTERN.matcher(text);
+        if (authorMatcher.find()) {
+            creatorName = authorMatcher.group(1);
+        }
+        Matcher uuidMatcher = UUID_PATTERN.matcher(text);
+        if (uuidMatcher.find()) {
+            try {
+                creatorId = UUID.fromString(uuidMatcher.group(1));
+            } catch (IllegalArgumentException e) {
+                diagnostics.add(new Diagnostic(lineNumber, uuidMatcher.start(1) + 1, Diagnostic.Severity.WARNING,
+                        uuidMatcher.group(1) + " doesn't appear to be a valid uuid! Could not set creator id correctly!"));
+            }
+        }
+    }
+
+    /**
+     * The parsed contents of a script file
+     */
+    public static class Result {
+        private final String creatorName;
+        private final UUID creatorId;
+        private final long revision;
+        private final Timeline timeline;
+        private final List<Diagnostic> diagnostics;
+
+        private Result(String creatorName, UUID creatorId, long revision, Timeline timeline, List<Diagnostic> diagnostics) {
+            this.creatorName = creatorName;
+            this.creatorId = creatorId;
+            this.revision = revision;
+            this.timeline = timeline;
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+        }
+
+        /**
+         * Get the name of the creator from the header
+         * @return The name; <tt>null</tt> if the header doesn't contain it
+         */
+        public String getCreatorName() {
+            return creatorName;
+        }
+
+        /**
+         * Get the UUID of the creator from the header
+         * @return The UUID; <tt>null</tt> if the header doesn't contain a valid one
+         */
+        public UUID getCreatorId() {
+            return creatorId;
+        }
+
+        /**
+         * Get the version of the script that the file was written at, see {@link ScriptJournal}
+         * @return The revision; 0 if the header doesn't contain it
+         */
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * Get the parsed commands
+         * @return The Timeline, empty when only the header was parsed
+         */
+        public Timeline getTimeline() {
+            return timeline;
+        }
+
+        /**
+         * Get the problems that were found while parsing
+         * @return An unmodifiable list of Diagnostics in the order of their lines
+         */
+        public List<Diagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        /**
+         * Check whether any of the problems is an error
+         * @return <tt>true</tt> if there is a Diagnostic with the ERROR severity
+         */
+        public boolean hasErrors() {
+            for (Diagnostic diagnostic : diagnostics) {
+                if (diagnostic.getSeverity() == Diagnostic.Severity.ERROR) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A problem at a specific position in a script file
+     */
+    public static class Diagnostic {
+        private final int line;
+        private final int column;
+        private final Severity severity;
+        private final String message;
+
+        public Diagnostic(int line, int column, Severity severity, String message) {
+            this.line = line;
+            this.column = column;
+            this.severity = severity;
+            this.message = message;
+        }
+
+        /**
+         * @return The line number, starting at 1
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return The column in the line, starting at 1
+         */
+        public int getColumn() {
+            return column;
+        }
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return severity.toString().toLowerCase() + " at " + line + ":" + column + ": " + message;
+        }
+
+        public enum Severity {
+            WARNING,
+            ERROR
+        }
+    }
+}
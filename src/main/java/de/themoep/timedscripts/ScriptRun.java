@@ -0,0 +1,431 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.command.CommandSender;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * A single run of a script. The run keeps a cursor into the script's sorted entries and
+ * only ever has the next due entry scheduled, so pausing, resuming and seeking don't require
+ * any rescheduling besides that one task.
+ */
+public class ScriptRun {
+    private final int id;
+    private final ScriptManager manager;
+    private final TimedScript script;
+    private final TimedScript.Snapshot snapshot;
+    private final CommandSender sender;
+    private final Map<String, String> vars;
+    private final CommandDispatcher.OverflowPolicy overflowPolicy;
+    private final ScriptMetrics metrics;
+
+    private final long[] offsets;
+    private final List<TimedCommand>[] entries;
+    private final List<String>[] rendered;
+    private final Map<String, String> replacements;
+
+    private long startTime = 0;
+    private long start = 0;
+    private long position = 0;
+    private int cursor = 0;
+    private State state = State.CREATED;
+    private boolean startPaused = false;
+    private ScriptScheduler.Task task = null;
+    private RunJournal journal = null;
+
+    /**
+     * Create a new run
+     * @param id             The id of the run
+     * @param manager        The ScriptManager that manages this run
+     * @param script         The script that is run
+     * @param snapshot       The version of the script that the entries were taken from
+     * @param sender         The sender that the commands are executed as
+     * @param vars           The variables that the run was started with
+     * @param overflowPolicy What to do with commands that don't fit into the dispatch budget
+     * @param offsets        The offsets of the entries in milliseconds in the scheduler's resolution, sorted ascending
+     * @param entries        The commands of each entry
+     * @param rendered       The pre-rendered commands of each entry; <tt>null</tt> to render them when they are due
+     * @param replacements   All variable values of the run, checked to contain all required variables
+     */
+    ScriptRun(int id, ScriptManager manager, TimedScript script, TimedScript.Snapshot snapshot, CommandSender sender, Map<String, String> vars, CommandDispatcher.OverflowPolicy overflowPolicy, long[] offsets, List<TimedCommand>[] entries, List<String>[] rendered, Map<String, String> replacements) {
+        this.id = id;
+        this.manager = manager;
+        this.script = script;
+        this.snapshot = snapshot;
+        this.sender = sender;
+        this.vars = vars;
+        this.overflowPolicy = overflowPolicy;
+        this.offsets = offsets;
+        this.entries = entries;
+        this.rendered = rendered;
+        this.replacements = replacements;
+        this.metrics = manager.getMetrics(script);
+    }
+
+    /**
+     * Record the progress of this run so that it can be resumed after a restart
+     * @param journal The RunJournal to record to
+     */
+    void setJournal(RunJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Continue at the state of a run from a previous server session. Has to be called before the run starts.
+     * @param cursor    The index of the next entry that wasn't dispatched yet
+     * @param position  The elapsed time of the run in milliseconds
+     * @param paused    Whether or not the run should stay paused
+     * @param startTime The unix timestamp in milliseconds when the run was originally started
+     */
+    synchronized void restore(int cursor, long position, boolean paused, long startTime) {
+        if (state == State.CREATED) {
+            this.cursor = Math.min(Math.max(cursor, 0), offsets.length);
+            this.position = Math.max(position, 0);
+            this.startPaused = paused;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Start this run. Commands that are due immediately get dispatched directly.
+     */
+    void start() {
+        synchronized (this) {
+            if (state != State.CREATED && state != State.QUEUED) {
+                return;
+            }
+            state = startPaused ? State.PAUSED : State.RUNNING;
+            if (startTime == 0) {
+                startTime = System.currentTimeMillis();
+            }
+            start = manager.getScheduler().getTime() - position;
+            metrics.runStarted();
+            if (journal != null) {
+                journal.start(this, cursor, position, startPaused);
+            }
+            if (startPaused) {
+                return;
+            }
+        }
+        fire();
+        manager.getDispatcher().drain();
+    }
+
+    /**
+     * Record the current position of this run, e.g. before the server stops
+     */
+    synchronized void checkpoint() {
+        if (journal != null && state == State.RUNNING) {
+            journal.progress(id, cursor, manager.getScheduler().getTime() - start, false);
+        }
+    }
+
+    /**
+     * Mark this run as waiting for a free slot
+     */
+    synchronized void setQueued() {
+        if (state == State.CREATED) {
+            state = State.QUEUED;
+        }
+    }
+
+    /**
+     * Check whether or not another run is of the same script with the same sender and variables
+     * @param other The other run
+     * @return <tt>true</tt> if both runs would dispatch the same commands
+     */
+    public boolean isIdentical(ScriptRun other) {
+        return snapshot == other.snapshot && sender.equals(other.sender) && vars.equals(other.vars);
+    }
+
+    /**
+     * Submit all entries that are due and schedule the next one
+     */
+    private void fire() {
+        synchronized (this) {
+            if (state != State.RUNNING) {
+                return;
+            }
+            long elapsed = manager.getScheduler().getTime() - start;
+            boolean skip = manager.getScheduler().isSkipping();
+            int fired = cursor;
+            while (cursor < offsets.length && offsets[cursor] <= elapsed) {
+                if (!skip) {
+                    List<String> commands = rendered != null ? rendered[cursor] : manager.renderEntry(entries[cursor], replacements, metrics);
+                    manager.getDispatcher().submit(sender, entries[cursor], commands, overflowPolicy, metrics, offsets[cursor]);
+                    metrics.fired(elapsed - offsets[cursor]);
+                }
+                cursor++;
+            }
+            if (cursor < offsets.length) {
+                if (journal != null && cursor > fired) {
+                    journal.progress(id, cursor, offsets[cursor - 1], false);
+                }
+                task = manager.getScheduler().scheduleAt(start + offsets[cursor], this::fire);
+                return;
+            }
+            task = null;
+            state = State.FINISHED;
+            metrics.runCompleted();
+        }
+        if (journal != null) {
+            journal.end(id);
+        }
+        manager.unregisterRun(this);
+    }
+
+    /**
+     * Pause this run. Commands that were already handed to the dispatcher will still be run.
+     * @return <tt>true</tt> if the run was paused; <tt>false</tt> if it wasn't running
+     */
+    public synchronized boolean pause() {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        position = manager.getScheduler().getTime() - start;
+        state = State.PAUSED;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (journal != null) {
+            journal.progress(id, cursor, position, true);
+        }
+        return true;
+    }
+
+    /**
+     * Resume this run at the position it was paused at
+     * @return <tt>true</tt> if the run was resumed; <tt>false</tt> if it wasn't paused
+     */
+    public boolean resume() {
+        synchronized (this) {
+            if (state != State.PAUSED) {
+                return false;
+            }
+            start = manager.getScheduler().getTime() - position;
+            state = State.RUNNING;
+            if (journal != null) {
+                journal.progress(id, cursor, position, false);
+            }
+        }
+        fire();
+        manager.getDispatcher().drain();
+        return true;
+    }
+
+    /**
+     * Jump to a specific offset in the script. Entries before that offset will not be dispatched
+     * while the entries at and after it will be dispatched at their normal time relative to it.
+     * If the run is paused then it stays paused at the new position.
+     * @param offset The offset to jump to in seconds
+     * @return <tt>true</tt> if the position was changed; <tt>false</tt> if the run already ended
+     */
+    public boolean seek(double offset) {
+        long target = Math.max(manager.getScheduler().toOffset(offset), 0);
+        synchronized (this) {
+            if (state == State.FINISHED || state == State.CANCELLED) {
+                return false;
+            }
+            int index = Arrays.binarySearch(offsets, target);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            while (index > 0 && offsets[index - 1] == target) {
+                index--;
+            }
+            cursor = index;
+            if (journal != null) {
+                journal.progress(id, cursor, target, state != State.RUNNING);
+            }
+            if (state != State.RUNNING) {
+                position = target;
+                return true;
+            }
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
+            start = manager.getScheduler().getTime() - target;
+        }
+        fire();
+        manager.getDispatcher().drain();
+        return true;
+    }
+
+    /**
+     * Cancel this run. Commands that were already handed to the dispatcher will still be run.
+     * @return <tt>true</tt> if the run was cancelled; <tt>false</tt> if it already ended
+     */
+    public boolean cancel() {
+        return cancel(true);
+    }
+
+    /**
+     * Cancel this run to make room for a new one. Its slot is handed to the new run
+     * instead of starting queued runs. Has to be called while holding the manager's run lock.
+     * @return <tt>true</tt> if the run was cancelled; <tt>false</tt> if it already ended
+     */
+    boolean replace() {
+        return cancel(false);
+    }
+
+    private boolean cancel(boolean startQueued) {
+        synchronized (this) {
+            if (state == State.FINISHED || state == State.CANCELLED) {
+                return false;
+            }
+            state = State.CANCELLED;
+            metrics.runCancelled();
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
+        }
+        if (journal != null) {
+            journal.end(id);
+        }
+        manager.unregisterRun(this, startQueued);
+        return true;
+    }
+
+    /**
+     * Get the id of this run
+     * @return The id, unique for this server session
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the script of this run
+     * @return The TimedScript
+     */
+    public TimedScript getScript() {
+        return script;
+    }
+
+    /**
+     * Get the version of the script that this run uses
+     * @return The Snapshot that was current when the run was created
+     */
+    public TimedScript.Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the sender this run executes the commands as
+     * @return The CommandSender
+     */
+    public CommandSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Get the variables that this run was started with
+     * @return The variables, without the ones of the sender
+     */
+    public Map<String, String> getVariables() {
+        return vars;
+    }
+
+    /**
+     * Get all variable values of this run
+     * @return The variables including the ones of the sender
+     */
+    Map<String, String> getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * Get the state of this run
+     * @return The State
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get the time when this run was started
+     * @return The unix timestamp in milliseconds; 0 if it wasn't started yet
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the time that passed since this run was started
+     * @return The elapsed time in seconds
+     */
+    public synchronized double getElapsed() {
+        if (state == State.CREATED || state == State.QUEUED) {
+            return 0;
+        } else if (state == State.PAUSED) {
+            return position / 1000.0;
+        }
+        return (manager.getScheduler().getTime() - start) / 1000.0;
+    }
+
+    /**
+     * Get the offset of the entry that is due next
+     * @return The offset in seconds; -1 if there is none
+     */
+    public synchronized double getNextOffset() {
+        if (cursor < offsets.length && state != State.FINISHED && state != State.CANCELLED) {
+            return offsets[cursor] / 1000.0;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the offset of the last entry of this run
+     * @return The offset in seconds
+     */
+    public double getDuration() {
+        return offsets.length > 0 ? offsets[offsets.length - 1] / 1000.0 : 0;
+    }
+
+    /**
+     * Get the amount of entries that were already dispatched
+     * @return The amount of dispatched entries
+     */
+    public synchronized int getProgress() {
+        return cursor;
+    }
+
+    /**
+     * Get the amount of entries of this run
+     * @return The amount of entries
+     */
+    public int getSize() {
+        return offsets.length;
+    }
+
+    public enum State {
+        CREATED,
+        QUEUED,
+        RUNNING,
+        PAUSED,
+        FINISHED,
+        CANCELLED
+    }
+}
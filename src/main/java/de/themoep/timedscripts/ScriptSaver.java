@@ -0,0 +1,181 @@
+package de.themoep.timedscripts;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Writes edited scripts to their files in the background. All edits of a script
+ * that happen within the delay after the first one are written with a single save.
+ * When journaling is enabled edits are appended to the {@link ScriptJournal} of the
+ * script instead and the script file only gets rewritten once the journal got too long.
+ */
+public class ScriptSaver {
+    private final TimedScripts plugin;
+    private final ScheduledExecutorService executor;
+    private final Set<TimedScript> pending = ConcurrentHashMap.newKeySet();
+    private volatile long delay = 0;
+    private volatile boolean journaling = false;
+    private volatile int compactAfter = 100;
+
+    public ScriptSaver(TimedScripts plugin) {
+        this.plugin = plugin;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, plugin.getName() + " Saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Delayed saves are done directly by flush() instead of waiting for them
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Set how long to wait for more edits before writing a script
+     * @param delay The delay in milliseconds, 0 or less to write scripts directly
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Get how long to wait for more edits before writing a script
+     * @return The delay in milliseconds, 0 or less if scripts are written directly
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Set whether edits should be appended to the journal of a script instead of saving it
+     * @param journaling    Whether or not to append edits to the journal
+     * @param compactAfter  The amount of edits in a journal after which the script gets saved
+     */
+    public void setJournaling(boolean journaling, int compactAfter) {
+        this.journaling = journaling;
+        this.compactAfter = Math.max(compactAfter, 1);
+    }
+
+    /**
+     * Check whether edits get appended to the journal of a script instead of saving it
+     * @return <tt>true</tt> if edits get appended to the journal
+     */
+    public boolean isJournaling() {
+        return journaling;
+    }
+
+    /**
+     * Get the amount of edits in a journal after which the script gets saved
+     * @return The amount of edits
+     */
+    public int getCompactAfter() {
+        return compactAfter;
+    }
+
+    /**
+     * Save a script after the delay, edits in the meantime are included in the same save
+     * @param script The edited script
+     * @return <tt>true</tt> if the save was scheduled or successful; <tt>false</tt> if saving directly failed
+     */
+    public boolean save(TimedScript script) {
+        long delay = this.delay;
+        if (delay <= 0) {
+            pending.remove(script);
+            return script.save();
+        }
+        return schedule(script, delay);
+    }
+
+    /**
+     * Save a script in the background so that its journal can be compacted.
+     * Unlike {@link #save(TimedScript)} this never writes the file on the calling thread.
+     * @param script The script whose journal is too long
+     */
+    public void compact(TimedScript script) {
+        if (!schedule(script, Math.max(delay, 0))) {
+            plugin.getLogger().severe("Error while saving script " + script.getName() + "! Please take a look at the exception above.");
+        }
+    }
+
+    private boolean schedule(TimedScript script, long delay) {
+        if (pending.add(script)) {
+            try {
+                executor.schedule(() -> write(script), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Already shut down
+                pending.remove(script);
+                return script.save();
+            }
+        }
+        return true;
+    }
+
+    private void write(TimedScript script) {
+        // Edits after this point schedule a new save
+        if (pending.remove(script) && !script.save()) {
+            plugin.getLogger().severe("Error while saving script " + script.getName() + "! Please take a look at the exception above.");
+            // Try again later or when flushing so the edits don't get lost
+            if (pending.add(script)) {
+                try {
+                    executor.schedule(() -> write(script), Math.max(delay, 1000), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Already shut down, flush() saves it
+                }
+            }
+        }
+    }
+
+    /**
+     * Don't save a script that is waiting to be saved, e.g. because it got deleted
+     * @param script The script
+     */
+    public void cancel(TimedScript script) {
+        pending.remove(script);
+    }
+
+    /**
+     * Get the amount of scripts that wait to be saved
+     * @return The amount of scripts with unsaved edits
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stop the background writer and directly save all scripts that wait to be saved
+     */
+    public void flush() {
+        // Don't interrupt a save that is in progress, its channel would get closed
+        executor.shutdown();
+        try {
+            // Let a save that is in progress finish
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TimedScript script : new ArrayList<>(pending)) {
+            write(script);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Shared scheduler for all script runs. Tasks are stored in a hierarchical timing wheel
+ * (256 slots of one tick plus three levels of 64 slots each) which is advanced by a single
+ * repeating Bukkit task, so scheduling and cancelling a task is O(1) and no extra threads are used.
+ * Tasks always run on the main thread. After the tasks of a tick ran the {@link CommandDispatcher} gets drained.
+ * <p/>
+ * The scheduler's clock either follows the real time or the server's tick progression, see {@link TimingMode}.
+ */
+public class ScriptScheduler {
+    /**
+     * The length of one wheel slot in milliseconds, equals one server tick
+     */
+    public static final long MILLIS_PER_TICK = 50;
+
+    private static final int ROOT_BITS = 8;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int ROOT_MASK = ROOT_SIZE - 1;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int LEVELS = 3;
+    private static final long MAX_DELAY = (1L << (ROOT_BITS + LEVELS * LEVEL_BITS)) - 1;
+
+    private final TimedScripts plugin;
+    private final CommandDispatcher dispatcher;
+
+    private final Task[] root = new Task[ROOT_SIZE];
+    private final Task[][] levels = new Task[LEVELS][LEVEL_SIZE];
+
+    /**
+     * The next wheel tick that will be processed
+     */
+    private long currentTick = 0;
+    private int size = 0;
+
+    private TimingMode mode = TimingMode.REALTIME;
+    private CatchUpPolicy catchUp = CatchUpPolicy.BURST;
+    private long maxLateness = 20;
+
+    /**
+     * The wheel tick that was processed last or is currently being processed
+     */
+    private volatile long now = 0;
+    /**
+     * The wheel tick the scheduler is currently advancing to
+     */
+    private long target = 0;
+
+    /**
+     * The monotonic clock in nanoseconds that the real time is read from
+     */
+    private LongSupplier clock = System::nanoTime;
+    private long startNanos = clock.getAsLong();
+    private BukkitTask driver = null;
+
+    public ScriptScheduler(TimedScripts plugin, CommandDispatcher dispatcher) {
+        this.plugin = plugin;
+        this.dispatcher = dispatcher;
+        for (int i = 0; i < ROOT_SIZE; i++) {
+            root[i] = Task.head();
+        }
+        for (Task[] level : levels) {
+            for (int i = 0; i < LEVEL_SIZE; i++) {
+                level[i] = Task.head();
+            }
+        }
+    }
+
+    /**
+     * Start the repeating task that drives this scheduler
+     */
+    public void start() {
+        if (driver == null) {
+            driver = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+        }
+    }
+
+    /**
+     * Stop driving the scheduler and cancel all tasks that are still scheduled
+     */
+    public void stop() {
+        if (driver != null) {
+            driver.cancel();
+            driver = null;
+        }
+        cancelAll();
+    }
+
+    /**
+     * Set how the scheduler's clock advances. The clock stays continuous when the mode changes.
+     * @param mode        The TimingMode
+     * @param catchUp     How to catch up with the real time in {@link TimingMode#TICKS} mode
+     * @param maxLateness How many ticks an entry may be late before it is skipped with {@link CatchUpPolicy#SKIP}
+     */
+    public synchronized void setTiming(TimingMode mode, CatchUpPolicy catchUp, long maxLateness) {
+        if (this.mode != mode || this.catchUp != catchUp) {
+            long time = getTime();
+            // Rebase the real time clock so that switching doesn't jump
+            startNanos = clock.getAsLong() - time * 1000000;
+            now = time / MILLIS_PER_TICK;
+        }
+        this.mode = mode;
+        this.catchUp = catchUp;
+        this.maxLateness = maxLateness;
+    }
+
+    /**
+     * Set the clock that the real time is read from, e.g. a virtual one to run the plugin without a server.
+     * The time of the scheduler stays continuous.
+     * @param clock The monotonic clock in nanoseconds
+     */
+    synchronized void setClock(LongSupplier clock) {
+        long time = getRealTime();
+        this.clock = clock;
+        startNanos = clock.getAsLong() - time * 1000000;
+    }
+
+    /**
+     * Get the mode of the scheduler's clock
+     * @return The TimingMode
+     */
+    public TimingMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the current time of this scheduler. In {@link TimingMode#REALTIME} mode this is the time passed
+     * since the scheduler was created on a monotonic clock, in {@link TimingMode#TICKS} mode this is
+     * the tick that is currently processed converted to milliseconds.
+     * @return The time in milliseconds
+     */
+    public long getTime() {
+        if (mode == TimingMode.TICKS) {
+            return now * MILLIS_PER_TICK;
+        }
+        return getRealTime();
+    }
+
+    private long getRealTime() {
+        return (clock.getAsLong() - startNanos) / 1000000;
+    }
+
+    /**
+     * Convert an offset of a script entry to the scheduler's resolution.
+     * In {@link TimingMode#TICKS} mode this rounds it to the nearest tick.
+     * @param seconds The offset in seconds
+     * @return The offset in milliseconds
+     */
+    public long toOffset(double seconds) {
+        if (mode == TimingMode.TICKS) {
+            return Math.round(seconds * 20) * MILLIS_PER_TICK;
+        }
+        return (long) (seconds * 1000);
+    }
+
+    /**
+     * Check whether or not the tick that is currently processed is so late that entries due in it should be skipped.
+     * This only happens in {@link TimingMode#TICKS} mode with the {@link CatchUpPolicy#SKIP} policy.
+     * @return <tt>true</tt> if entries should be skipped
+     */
+    public boolean isSkipping() {
+        return mode == TimingMode.TICKS && catchUp == CatchUpPolicy.SKIP && target - now > maxLateness;
+    }
+
+    /**
+     * Schedule a task to run on the main thread after a certain delay
+     * @param delay    The delay in milliseconds
+     * @param runnable The runnable to run
+     * @return The scheduled Task which can be used to cancel it
+     */
+    public Task schedule(long delay, Runnable runnable) {
+        return scheduleAt(getTime() + Math.max(delay, 0), runnable);
+    }
+
+    /**
+     * Schedule a task to run on the main thread at a specific scheduler time
+     * @param time     The time in milliseconds on the scheduler's clock (see {@link #getTime()})
+     * @param runnable The runnable to run
+     * @return The scheduled Task which can be used to cancel it
+     */
+    public synchronized Task scheduleAt(long time, Runnable runnable) {
+        Task task = new Task(this, (time + MILLIS_PER_TICK - 1) / MILLIS_PER_TICK, runnable);
+        add(task);
+        size++;
+        return task;
+    }
+
+    /**
+     * Get the amount of tasks that are currently scheduled
+     * @return The amount of scheduled tasks
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Cancel all scheduled tasks
+     */
+    public synchronized void cancelAll() {
+        for (Task head : root) {
+            clear(head);
+        }
+        for (Task[] level : levels) {
+            for (Task head : level) {
+                clear(head);
+            }
+        }
+        size = 0;
+    }
+
+    private void clear(Task head) {
+        while (head.next != head) {
+            Task task = head.next;
+            task.unlink();
+            task.cancelled = true;
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time, run all tasks that are due and dispatch their commands
+     */
+    private void tick() {
+        long started = System.nanoTime();
+        dispatcher.startTick();
+        if (mode == TimingMode.TICKS) {
+            long next = now + 1;
+            if (catchUp != CatchUpPolicy.STRETCH) {
+                next = Math.max(next, getRealTime() / MILLIS_PER_TICK);
+            }
+            advanceTo(next);
+        } else {
+            advanceTo(getRealTime() / MILLIS_PER_TICK);
+        }
+        dispatcher.drain();
+        dispatcher.endTick(System.nanoTime() - started);
+    }
+
+    /**
+     * Process all wheel ticks up to and including the target tick
+     * @param target The wheel tick to advance to
+     */
+    private void advanceTo(long target) {
+        Task expired = Task.head();
+        while (true) {
+            synchronized (this) {
+                this.target = target;
+                if (currentTick > target || size == 0) {
+                    if (size == 0) {
+                        // Nothing to run, skip ahead directly
+                        currentTick = Math.max(currentTick, target + 1);
+                    }
+                    now = Math.max(now, target);
+                    return;
+                }
+                int index = (int) (currentTick & ROOT_MASK);
+                if (index == 0) {
+                    for (int level = 0; level < LEVELS && cascade(level) == 0; level++) ;
+                }
+                now = currentTick;
+                currentTick++;
+                expired.splice(root[index]);
+            }
+            runExpired(expired);
+        }
+    }
+
+    /**
+     * Move all tasks of the current slot of a level into the lower levels
+     * @param level The level to cascade
+     * @return The index of the slot that was cascaded
+     */
+    private int cascade(int level) {
+        int index = (int) ((currentTick >> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK);
+        Task head = levels[level][index];
+        Task pending = Task.head();
+        pending.splice(head);
+        while (pending.next != pending) {
+            Task task = pending.next;
+            task.unlink();
+            add(task);
+        }
+        return index;
+    }
+
+    private void add(Task task) {
+        long delay = task.deadline - currentTick;
+        Task head;
+        if (delay < 0) {
+            head = root[(int) (currentTick & ROOT_MASK)];
+        } else if (delay < ROOT_SIZE) {
+            head = root[(int) (task.deadline & ROOT_MASK)];
+        } else {
+            long deadline = delay > MAX_DELAY ? currentTick + MAX_DELAY : task.deadline;
+            int level = 0;
+            while (level < LEVELS - 1 && delay >= 1L << (ROOT_BITS + (level + 1) * LEVEL_BITS)) {
+                level++;
+            }
+            head = levels[level][(int) ((deadline >> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK)];
+        }
+        task.linkBefore(head);
+    }
+
+    private void runExpired(Task expired) {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                if (expired.next == expired) {
+                    return;
+                }
+                task = expired.next;
+                task.unlink();
+                task.done = true;
+                size--;
+            }
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while running scheduled script task!", e);
+            }
+        }
+    }
+
+    public enum TimingMode {
+        /**
+         * Offsets are measured in milliseconds of real time, entries are run on the first tick after they are due
+         */
+        REALTIME,
+        /**
+         * Offsets are rounded to server ticks and the clock advances with the ticks the server processes
+         */
+        TICKS
+    }
+
+    public enum CatchUpPolicy {
+        /**
+         * Process all overdue ticks at once to catch up with the real time
+         */
+        BURST,
+        /**
+         * Catch up with the real time but skip entries that are too late
+         */
+        SKIP,
+        /**
+         * Never catch up, scripts just run slower while the server lags
+         */
+        STRETCH
+    }
+
+    public static class Task {
+        private final ScriptScheduler scheduler;
+        private final long deadline;
+        private final Runnable runnable;
+        private Task prev = this;
+        private Task next = this;
+        private boolean cancelled = false;
+        private boolean done = false;
+
+        private Task(ScriptScheduler scheduler, long deadline, Runnable runnable) {
+            this.scheduler = scheduler;
+            this.deadline = deadline;
+            this.runnable = runnable;
+        }
+
+        private static Task head() {
+            return new Task(null, -1, null);
+        }
+
+        /**
+         * Cancel this task if it didn't run yet
+         * @return <tt>true</tt> if the task was cancelled; <tt>false</tt> if it already ran or was cancelled before
+         */
+        public boolean cancel() {
+            synchronized (scheduler) {
+                if (cancelled || done) {
+                    return false;
+                }
+                cancelled = true;
+                unlink();
+                scheduler.size--;
+                return true;
+            }
+        }
+
+        /**
+         * Get whether or not this task was cancelled
+         * @return <tt>true</tt> if it was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Get whether or not this task already ran
+         * @return <tt>true</tt> if it ran
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        private void linkBefore(Task head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        /**
+         * Move all tasks from another list to the end of the list this task is the head of
+         * @param other The head of the list to take the tasks from
+         */
+        private void splice(Task other) {
+            if (other.next == other) {
+                return;
+            }
+            Task first = other.next;
+            Task last = other.prev;
+            other.next = other;
+            other.prev = other;
+            first.prev = prev;
+            prev.next = first;
+            last.next = this;
+            prev = last;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.logging.Logger;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Settings that can be configured per script in the scripts section of the config
+ */
+public class ScriptSettings {
+    private final CommandDispatcher.OverflowPolicy overflowPolicy;
+    private final int maxRuns;
+    private final LimitPolicy limitPolicy;
+    private final int queueSize;
+    private final RenderMode renderMode;
+    private final boolean resumable;
+
+    ScriptSettings(CommandDispatcher.OverflowPolicy overflowPolicy, int maxRuns, LimitPolicy limitPolicy, int queueSize, RenderMode renderMode, boolean resumable) {
+        this.overflowPolicy = overflowPolicy;
+        this.maxRuns = maxRuns;
+        this.limitPolicy = limitPolicy;
+        this.queueSize = queueSize;
+        this.renderMode = renderMode;
+        this.resumable = resumable;
+    }
+
+    /**
+     * Load settings from a config section
+     * @param logger   The logger to log invalid values to
+     * @param section  The section to load from, can be <tt>null</tt>
+     * @param defaults The settings to use for values that aren't set in the section
+     */
+    ScriptSettings(Logger logger, ConfigurationSection section, ScriptSettings defaults) {
+        if (section == null) {
+            overflowPolicy = defaults.overflowPolicy;
+            maxRuns = defaults.maxRuns;
+            limitPolicy = defaults.limitPolicy;
+            queueSize = defaults.queueSize;
+            renderMode = defaults.renderMode;
+            resumable = defaults.resumable;
+            return;
+        }
+        overflowPolicy = Utils.getEnum(logger, CommandDispatcher.OverflowPolicy.class, section.getString("overflow"), defaults.overflowPolicy);
+        maxRuns = section.getInt("limit", defaults.maxRuns);
+        limitPolicy = Utils.getEnum(logger, LimitPolicy.class, section.getString("limit-policy"), defaults.limitPolicy);
+        queueSize = section.getInt("queue-size", defaults.queueSize);
+        renderMode = Utils.getEnum(logger, RenderMode.class, section.getString("render"), defaults.renderMode);
+        resumable = section.getBoolean("resumable", defaults.resumable);
+    }
+
+    /**
+     * Get what to do with commands that don't fit into the dispatch budget
+     * @return The OverflowPolicy
+     */
+    public CommandDispatcher.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get the maximum amount of runs of the script that can be active at the same time
+     * @return The maximum amount of runs; 0 or less if there is no limit
+     */
+    public int getMaxRuns() {
+        return maxRuns;
+    }
+
+    /**
+     * Get what to do when a new run would exceed a limit
+     * @return The LimitPolicy
+     */
+    public LimitPolicy getLimitPolicy() {
+        return limitPolicy;
+    }
+
+    /**
+     * Get the maximum amount of runs that can wait with the {@link LimitPolicy#QUEUE} policy
+     * @return The maximum amount of queued runs
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Get when the commands of a run get their variables replaced
+     * @return The RenderMode
+     */
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Get whether or not runs of the script continue after a restart when the run journal is enabled
+     * @return <tt>true</tt> if runs can be resumed
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public enum LimitPolicy {
+        /**
+         * Don't start the new run
+         */
+        REJECT,
+        /**
+         * Wait until enough runs ended, up to the queue size
+         */
+        QUEUE,
+        /**
+         * Stop the oldest active run and start the new one
+         */
+        REPLACE,
+        /**
+         * Use an active or queued run with the same sender and variables, reject the new run if there is none
+         */
+        COALESCE
+    }
+
+    public enum RenderMode {
+        /**
+         * Render all commands when the run starts
+         */
+        EAGER,
+        /**
+         * Render the commands of an entry when it is due
+         */
+        LAZY
+    }
+}
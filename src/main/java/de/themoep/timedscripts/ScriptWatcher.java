@@ -0,0 +1,160 @@
+package de.themoep.timedscripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Watches the scripts folder for script files that get created, changed or deleted by something
+ * else than the plugin and reloads only these. Events for a file are collected until there
+ * were none for the delay so that a file that is still being written is only loaded once.
+ */
+public class ScriptWatcher implements Runnable {
+    private final TimedScripts plugin;
+    private final ScriptManager manager;
+    private final File folder;
+    private final long delay;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    // File name -> time in nanoseconds when it should be handled
+    private final Map<String, Long> pending = new HashMap<>();
+
+    /**
+     * Start watching a folder
+     * @param plugin  The plugin
+     * @param manager The ScriptManager to load the changed scripts into
+     * @param folder  The folder of the scripts
+     * @param delay   The time in milliseconds to wait for further changes of a file before loading it
+     * @throws IOException When the folder can't be watched
+     */
+    public ScriptWatcher(TimedScripts plugin, ScriptManager manager, File folder, long delay) throws IOException {
+        this.plugin = plugin;
+        this.manager = manager;
+        this.folder = folder;
+        this.delay = Math.max(delay, 0);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        folder.toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE
+        );
+        thread = new Thread(this, plugin.getName() + " Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = pending.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(nextDue() - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            plugin.getLogger().warning("Too many changes in the scripts folder, reloading all scripts");
+                            pending.clear();
+                            plugin.getServer().getScheduler().runTask(plugin, manager::loadScripts);
+                            continue;
+                        }
+                        String name = ((Path) event.context()).getFileName().toString();
+                        // Archived scripts start with a dash, temporary files don't end with .txt
+                        if (!name.startsWith("-") && name.endsWith(".txt")) {
+                            pending.put(name, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+                        }
+                    }
+                    key.reset();
+                }
+                handleDue();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    private long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (long due : pending.values()) {
+            next = Math.min(next, due);
+        }
+        return next;
+    }
+
+    private void handleDue() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() - now <= 0) {
+                it.remove();
+                handle(new File(folder, entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Load, reload or remove the script of a file depending on its current state
+     * @param file The script file
+     */
+    private void handle(File file) {
+        String name = file.getName().substring(0, file.getName().length() - ".txt".length());
+        TimedScript script = manager.getScript(name);
+        if (!file.exists()) {
+            if (script != null && script.getFile().equals(file)) {
+                manager.unloadScript(script);
+                plugin.getLogger().info("Script file " + file.getName() + " was deleted, removed the script");
+            }
+            return;
+        }
+        if (script != null && script.getLastModified() == file.lastModified() && script.getFileSize() == file.length()) {
+            // Written by us
+            return;
+        }
+        try {
+            manager.loadScript(file);
+            plugin.getLogger().info("Script file " + file.getName() + " changed, reloaded the script");
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while reloading changed script " + file.getName() + "!", e);
+        }
+    }
+
+    /**
+     * Stop watching the folder
+     */
+    public void stop() {
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package de.themoep.timedscripts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Measures how much time of each server tick the scripts take and attributes the dispatch
+ * time to the scripts and command labels. The worst ticks are kept and a warning gets logged
+ * when a tick exceeds the threshold. Only used on the main thread.
+ */
+public class TickProfiler {
+    private static final long WARNING_INTERVAL = 1000000000L;
+
+    private final Logger logger;
+    private long threshold = 0;
+    private Tick[] worst = new Tick[10];
+
+    // Script name -> label -> attribution, of the current tick and since the plugin was enabled
+    private final Map<String, Map<String, Attribution>> current = new HashMap<>();
+    private final Map<String, Map<String, Attribution>> totals = new HashMap<>();
+    private boolean inTick = false;
+    private long outside = 0;
+
+    private long ticks = 0;
+    private long totalTime = 0;
+    private long maxTime = 0;
+    private long exceeded = 0;
+    private long lastWarning = 0;
+    private int suppressed = 0;
+
+    public TickProfiler(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Set when ticks should be reported
+     * @param threshold  The time in nanoseconds after which a warning gets logged, 0 or less to never log one
+     * @param worstTicks The amount of the worst ticks to keep
+     */
+    public void setLimits(long threshold, int worstTicks) {
+        this.threshold = threshold;
+        worstTicks = Math.max(worstTicks, 0);
+        if (worstTicks != worst.length) {
+            worst = Arrays.copyOf(getWorstTicks().toArray(new Tick[0]), worstTicks);
+        }
+    }
+
+    /**
+     * Get the time after which a warning gets logged
+     * @return The threshold in nanoseconds, 0 or less if no warnings get logged
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    void startTick() {
+        inTick = true;
+    }
+
+    /**
+     * Attribute the time of a dispatched command
+     * @param script The name of the script
+     * @param label  The label of the command
+     * @param offset The offset of the command's entry in milliseconds
+     * @param nanos  The time it took to dispatch the command in nanoseconds
+     */
+    void record(String script, String label, long offset, long nanos) {
+        Attribution attribution = current.computeIfAbsent(script, k -> new HashMap<>()).get(label);
+        if (attribution == null) {
+            attribution = new Attribution(script, label);
+            current.get(script).put(label, attribution);
+        }
+        attribution.add(offset, nanos);
+        if (!inTick) {
+            // Dispatched by a command between ticks, counts towards the next tick
+            outside += nanos;
+        }
+    }
+
+    /**
+     * Finish the current tick
+     * @param duration The time the tick of the scheduler took in nanoseconds
+     */
+    void endTick(long duration) {
+        inTick = false;
+        long total = duration + outside;
+        outside = 0;
+        ticks++;
+        totalTime += total;
+        maxTime = Math.max(maxTime, total);
+        if (current.isEmpty()) {
+            return;
+        }
+        List<Attribution> attributions = new ArrayList<>();
+        for (Map<String, Attribution> labels : current.values()) {
+            for (Attribution attribution : labels.values()) {
+                attributions.add(attribution);
+                totals.computeIfAbsent(attribution.script, k -> new HashMap<>())
+                        .computeIfAbsent(attribution.label, k -> new Attribution(attribution.script, attribution.label))
+                        .merge(attribution);
+            }
+        }
+        current.clear();
+
+        boolean over = threshold > 0 && total > threshold;
+        int worstIndex = getReplaceableWorst(total);
+        if (!over && worstIndex < 0) {
+            return;
+        }
+        attributions.sort(Comparator.comparingLong((Attribution a) -> a.nanos).reversed());
+        Tick tick = new Tick(System.currentTimeMillis(), ticks, total, attributions.subList(0, Math.min(attributions.size(), 3)));
+        if (worstIndex >= 0) {
+            worst[worstIndex] = tick;
+        }
+        if (over) {
+            exceeded++;
+            long now = System.nanoTime();
+            if (now - lastWarning < WARNING_INTERVAL) {
+                suppressed++;
+                return;
+            }
+            logger.warning("Scripts took " + Utils.formatNanos(total) + " of a tick (threshold " + Utils.formatNanos(threshold) + "): " + tick
+                    + (suppressed > 0 ? " (" + suppressed + " more slow ticks since the last warning)" : ""));
+            lastWarning = now;
+            suppressed = 0;
+        }
+    }
+
+    /**
+     * Get the index in the worst ticks that a tick should replace
+     * @param total The time of the tick
+     * @return The index of an empty slot or the smallest tick that is faster; -1 if the tick isn't one of the worst
+     */
+    private int getReplaceableWorst(long total) {
+        int index = -1;
+        for (int i = 0; i < worst.length; i++) {
+            if (worst[i] == null) {
+                return i;
+            }
+            if (worst[i].total < total && (index < 0 || worst[i].total < worst[index].total)) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the ticks in which the scripts took the most time
+     * @return The Ticks, slowest first
+     */
+    public List<Tick> getWorstTicks() {
+        List<Tick> list = new ArrayList<>();
+        for (Tick tick : worst) {
+            if (tick != null) {
+                list.add(tick);
+            }
+        }
+        list.sort(Comparator.comparingLong((Tick t) -> t.total).reversed());
+        return list;
+    }
+
+    /**
+     * Get the script and label combinations that took the most dispatch time since the plugin was enabled
+     * @param limit The maximum amount to return
+     * @return The Attributions, most expensive first
+     */
+    public List<Attribution> getTopAttributions(int limit) {
+        List<Attribution> list = new ArrayList<>();
+        for (Map<String, Attribution> labels : totals.values()) {
+            list.addAll(labels.values());
+        }
+        list.sort(Comparator.comparingLong((Attribution a) -> a.nanos).reversed());
+        return list.subList(0, Math.min(list.size(), limit));
+    }
+
+    /**
+     * @return The amount of ticks that were profiled
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return The average time per tick in nanoseconds
+     */
+    public long getAverage() {
+        return ticks > 0 ? totalTime / ticks : 0;
+    }
+
+    /**
+     * @return The time of the slowest tick in nanoseconds
+     */
+    public long getMax() {
+        return maxTime;
+    }
+
+    /**
+     * @return The amount of ticks that exceeded the threshold
+     */
+    public long getExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * The dispatch time of the commands with one label of a script
+     */
+    public static class Attribution {
+        private final String script;
+        private final String label;
+        private long nanos = 0;
+        private int count = 0;
+        private long slowest = 0;
+        private long slowestOffset = 0;
+
+        private Attribution(String script, String label) {
+            this.script = script;
+            this.label = label;
+        }
+
+        private void add(long offset, long nanos) {
+            this.nanos += nanos;
+            count++;
+            if (nanos > slowest) {
+                slowest = nanos;
+                slowestOffset = offset;
+            }
+        }
+
+        private void merge(Attribution other) {
+            nanos += other.nanos;
+            count += other.count;
+            if (other.slowest > slowest) {
+                slowest = other.slowest;
+                slowestOffset = other.slowestOffset;
+            }
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return The combined dispatch time in nanoseconds
+         */
+        public long getTime() {
+            return nanos;
+        }
+
+        /**
+         * @return The amount of dispatched commands
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return The offset in milliseconds of the entry of the slowest command
+         */
+        public long getSlowestOffset() {
+            return slowestOffset;
+        }
+
+        @Override
+        public String toString() {
+            return script + " '" + label + "' " + Utils.formatNanos(nanos) + " (" + count + "x, slowest at " + Utils.formatTime(slowestOffset / 1000.0) + "s)";
+        }
+    }
+
+    /**
+     * A tick in which the scripts took a lot of time
+     */
+    public static class Tick {
+        private final long time;
+        private final long number;
+        private final long total;
+        private final List<Attribution> top;
+
+        private Tick(long time, long number, long total, List<Attribution> top) {
+            this.time = time;
+            this.number = number;
+            this.total = total;
+            this.top = new ArrayList<>(top);
+        }
+
+        /**
+         * @return The unix timestamp in milliseconds of the tick
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The number of the tick since the plugin was enabled
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * @return The time the scripts took in this tick in nanoseconds
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return The script and label combinations that took the most time in this tick
+         */
+        public List<Attribution> getTop() {
+            return top;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Attribution attribution : top) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(attribution);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package de.themoep.timedscripts;
 
+import org.bukkit.command.Command;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -24,24 +33,135 @@ import java.util.regex.Pattern;
  * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
  */
 public class TimedCommand {
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\%(\\w+?)(=(.*?)|)\\%");
+
     private final String command;
+    private final Segment[] segments;
+    private String plainCommand;
+    private int minLength;
+    private String label;
+    private String[] args;
     private Map<String, Variable> variables = new HashMap<String, Variable>();
 
+    // Cache of the CommandResolver
+    volatile Command resolvedTarget = null;
+    volatile int resolvedEpoch = -1;
+
     public TimedCommand(String command) {
         command = command.trim();
         if (command.startsWith("/")) {
             command = command.substring(1);
         }
-        Pattern pattern = Pattern.compile("\\%(\\w+?)(=(.*?)|)\\%");
-        Matcher matcher = pattern.matcher(command);
+        List<Segment> segments = new ArrayList<>();
+        int last = 0;
+        Matcher matcher = VARIABLE_PATTERN.matcher(command);
         while (matcher.find()) {
-            Variable var = new Variable(matcher.group(1));
-            if (matcher.groupCount() >= 3) {
-                var.setDefault(matcher.group(3));
+            if (matcher.start() > last) {
+                segments.add(new Segment(command.substring(last, matcher.start())));
             }
-            variables.put(var.getName(), var);
+            Variable var = variables.get(matcher.group(1).toLowerCase());
+            if (var == null) {
+                var = new Variable(matcher.group(1));
+                variables.put(var.getName(), var);
+            }
+            // The last occurrence of a variable defines its default value
+            var.setDefault(matcher.group(3));
+            if (var.getName().equals(matcher.group(1))) {
+                segments.add(new Segment(var, matcher.group(), matcher.group(2)));
+            } else {
+                // Variable names with upper case letters were never replaced, only checked
+                segments.add(new Segment(matcher.group()));
+            }
+            last = matcher.end();
+        }
+        if (last < command.length()) {
+            segments.add(new Segment(command.substring(last)));
         }
         this.command = command;
+        this.segments = segments.toArray(new Segment[segments.size()]);
+        init();
+    }
+
+    /**
+     * Restore a command that was written with {@link #write(DataOutput)} without parsing it again
+     * @param in The input to read from
+     * @throws IOException When reading failed or the data is invalid
+     */
+    TimedCommand(DataInput in) throws IOException {
+        command = CompiledCache.readString(in);
+        int variableCount = in.readInt();
+        Variable[] vars = new Variable[variableCount];
+        for (int i = 0; i < variableCount; i++) {
+            vars[i] = new Variable(CompiledCache.readString(in));
+            vars[i].setDefault(CompiledCache.readString(in));
+            variables.put(vars[i].getName(), vars[i]);
+        }
+        segments = new Segment[in.readInt()];
+        for (int i = 0; i < segments.length; i++) {
+            int index = in.readInt();
+            String text = CompiledCache.readString(in);
+            if (index < 0) {
+                segments[i] = new Segment(text);
+            } else if (index < vars.length) {
+                segments[i] = new Segment(vars[index], text, CompiledCache.readString(in));
+            } else {
+                throw new IOException("Invalid variable index " + index + " in compiled command " + command);
+            }
+        }
+        init();
+    }
+
+    /**
+     * Write the compiled form of this command
+     * @param out The output to write to
+     * @throws IOException When writing failed
+     */
+    void write(DataOutput out) throws IOException {
+        CompiledCache.writeString(out, command);
+        Variable[] vars = new Variable[variables.size()];
+        for (Variable var : variables.values()) {
+            vars[var.getIndex()] = var;
+        }
+        out.writeInt(vars.length);
+        for (Variable var : vars) {
+            CompiledCache.writeString(out, var.getName());
+            CompiledCache.writeString(out, var.getDefault());
+        }
+        out.writeInt(segments.length);
+        for (Segment segment : segments) {
+            if (segment.variable == null) {
+                out.writeInt(-1);
+                CompiledCache.writeString(out, segment.text);
+            } else {
+                out.writeInt(segment.variable.getIndex());
+                CompiledCache.writeString(out, segment.text);
+                CompiledCache.writeString(out, segment.defaultPart);
+            }
+        }
+    }
+
+    /**
+     * Set up the values that are derived from the command and its segments
+     */
+    private void init() {
+        plainCommand = command.replace("\\%", "%");
+        minLength = 0;
+        for (Segment segment : segments) {
+            if (segment.variable == null) {
+                minLength += segment.text.length();
+            }
+        }
+
+        if (variables.isEmpty()) {
+            // Split the same way the command map does
+            String[] split = plainCommand.split(" ");
+            label = split.length > 0 ? split[0].toLowerCase(Locale.ENGLISH) : null;
+            args = split.length > 0 ? Arrays.copyOfRange(split, 1, split.length) : null;
+        } else {
+            int space = segments[0].variable == null ? segments[0].literal.indexOf(' ') : -1;
+            label = space > 0 ? segments[0].literal.substring(0, space).toLowerCase(Locale.ENGLISH) : null;
+            args = null;
+        }
     }
 
     /**
@@ -49,11 +169,23 @@ public class TimedCommand {
      * @return The pure command string
      */
     public String getCommand() {
-        try {
-            return getCommand(null);
-        } catch (MissingVariableException ignored) {
-            return command;
-        }
+        return plainCommand;
+    }
+
+    /**
+     * Get the label of the command if it doesn't depend on any variable
+     * @return The lower case label; <tt>null</tt> if it contains a variable
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Get the arguments of the command if it doesn't contain any variables
+     * @return The arguments split like the command map would; <tt>null</tt> if the command contains variables
+     */
+    public String[] getArgs() {
+        return args;
     }
 
     /**
@@ -62,28 +194,150 @@ public class TimedCommand {
      * @return The command string; passing null will just get the unreplaced string
      */
     public String getCommand(Map<String, String> replacements) throws MissingVariableException {
-        String returnCommand = command;
-        if (replacements != null) {
-            for (Variable var : variables.values()) {
-                String value = replacements.get(var.getName());
-                if (value == null) {
-                    value = var.getDefault();
-                }
-                if (value == null) {
+        if (replacements == null || variables.isEmpty()) {
+            return plainCommand;
+        }
+        String[] values = new String[variables.size()];
+        int valuesLength = 0;
+        for (Variable var : variables.values()) {
+            String value = replacements.get(var.getName());
+            if (value == null) {
+                if (!var.hasDefault()) {
                     throw new MissingVariableException("No value nor defualt value set for variable " + var.getName());
                 }
+                value = var.hasDefaultReferences() ? replaceVariables(var.getDefault(), replacements) : var.getDefault();
+            } else if (value.indexOf('$') >= 0) {
                 value = replaceVariables(value, replacements);
-                returnCommand = returnCommand.replaceAll("\\%" + var.getName() + "(=.*?|)\\%", value);
             }
+            values[var.getIndex()] = value;
+            valuesLength += value.length();
         }
-        return returnCommand.replace("\\%", "%");
+
+        StringBuilder builder = new StringBuilder(minLength + valuesLength * 2);
+        for (Segment segment : segments) {
+            if (segment.variable == null) {
+                if (segment.startsWithPercent && builder.length() > 0 && builder.charAt(builder.length() - 1) == '\\') {
+                    builder.setLength(builder.length() - 1);
+                }
+                builder.append(segment.literal);
+            } else {
+                appendReplacement(builder, values[segment.variable.getIndex()], segment);
+            }
+        }
+        return builder.toString();
     }
 
+    /**
+     * Replace all $var$ references in a value in a single pass and unescape \\$
+     * @param value        The value
+     * @param replacements The variable values
+     * @return The value with all references to existing variables replaced
+     */
     private String replaceVariables(String value, Map<String, String> replacements) {
-        for (Map.Entry<String, String> entry : replacements.entrySet()) {
-            value = value.replace("$" + entry.getKey() + "$", entry.getValue());
+        StringBuilder builder = new StringBuilder(value.length() + 16);
+        int start = 0;
+        int open = value.indexOf('$');
+        while (open >= 0) {
+            int close = value.indexOf('$', open + 1);
+            if (close < 0) {
+                break;
+            }
+            String replacement = replacements.get(value.substring(open + 1, close));
+            if (replacement != null) {
+                appendUnescaped(builder, value, start, open, '$');
+                appendUnescaped(builder, replacement, '$');
+                start = close + 1;
+                open = value.indexOf('$', start);
+            } else {
+                // The closing dollar might be the start of another reference
+                appendUnescaped(builder, value, start, close, '$');
+                start = close;
+                open = close;
+            }
+        }
+        appendUnescaped(builder, value, start, value.length(), '$');
+        return builder.toString();
+    }
+
+    /**
+     * Append a variable value the same way a regex replacement string is interpreted:
+     * backslashes escape the next character and $0 and $1 reference the variable's text and its default part.
+     * Unlike in a regex replacement invalid references are appended literally.
+     * The backslash of \\% is removed from the result like it is in the rest of the command.
+     */
+    private static void appendReplacement(StringBuilder builder, String value, Segment segment) {
+        if (value.indexOf('\\') < 0 && value.indexOf('$') < 0) {
+            appendUnescaped(builder, value, '%');
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+            } else if (c == '$' && i + 1 < value.length() && value.charAt(i + 1) >= '0' && value.charAt(i + 1) <= '1') {
+                int group = value.charAt(++i) - '0';
+                while (group == 0 && i + 1 < value.length() && value.charAt(i + 1) <= '1' && value.charAt(i + 1) >= '0') {
+                    group = value.charAt(++i) - '0';
+                }
+                appendUnescaped(builder, group == 0 ? segment.text : segment.defaultPart, '%');
+                continue;
+            }
+            if (c == '%' && builder.length() > 0 && builder.charAt(builder.length() - 1) == '\\') {
+                builder.setLength(builder.length() - 1);
+            }
+            builder.append(c);
+        }
+    }
+
+    private static void appendUnescaped(StringBuilder builder, String string, char escaped) {
+        appendUnescaped(builder, string, 0, string.length(), escaped);
+    }
+
+    /**
+     * Append a part of a string and remove backslashes in front of a certain character,
+     * also if the backslash was already appended before.
+     */
+    private static void appendUnescaped(StringBuilder builder, String string, int start, int end, char escaped) {
+        int index = string.indexOf(escaped, start);
+        while (index >= 0 && index < end) {
+            builder.append(string, start, index);
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) == '\\') {
+                builder.setLength(builder.length() - 1);
+            }
+            builder.append(escaped);
+            start = index + 1;
+            index = string.indexOf(escaped, start);
+        }
+        builder.append(string, start, end);
+    }
+
+    /**
+     * Get a variable that neither has a value in the replacement map nor a default value.
+     * If this returns <tt>null</tt> then {@link #getCommand(Map)} will not throw a {@link MissingVariableException}.
+     * @param replacements A map of replacements
+     * @return The name of the first missing variable; <tt>null</tt> if there is none
+     */
+    public String getMissingVariable(Map<String, String> replacements) {
+        for (Variable var : variables.values()) {
+            if (!var.hasDefault() && replacements.get(var.getName()) == null) {
+                return var.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the names of all variables of this command that don't have a default value
+     * @return A set of lower case variable names
+     */
+    public Set<String> getRequiredVariables() {
+        Set<String> required = new HashSet<>();
+        for (Variable var : variables.values()) {
+            if (!var.hasDefault()) {
+                required.add(var.getName());
+            }
         }
-        return value.replace("\\$", "$");
+        return required;
     }
 
     /**
@@ -148,17 +402,47 @@ public class TimedCommand {
         return command;
     }
 
+    /**
+     * A part of the command, either literal text or a variable slot
+     */
+    private static class Segment {
+        private final String literal;
+        private final boolean startsWithPercent;
+        private final Variable variable;
+        private final String text;
+        private final String defaultPart;
+
+        private Segment(String literal) {
+            this.literal = literal.replace("\\%", "%");
+            this.startsWithPercent = literal.startsWith("%");
+            this.variable = null;
+            this.text = literal;
+            this.defaultPart = null;
+        }
+
+        private Segment(Variable variable, String text, String defaultPart) {
+            this.literal = null;
+            this.startsWithPercent = false;
+            this.variable = variable;
+            this.text = text;
+            this.defaultPart = defaultPart;
+        }
+    }
+
     private class Variable {
         private final String name;
+        private final int index;
         private String defaultValue = null;
+        private boolean defaultReferences = false;
 
         public Variable(String name) {
             this.name = name.toLowerCase();
+            this.index = variables.size();
         }
 
         public Variable(String name, String defaultValue) {
             this(name);
-            this.defaultValue = defaultValue;
+            setDefault(defaultValue);
         }
 
         public String getName() {
@@ -175,6 +459,15 @@ public class TimedCommand {
 
         public void setDefault(String defaultValue) {
             this.defaultValue = defaultValue;
+            this.defaultReferences = defaultValue != null && defaultValue.indexOf('$') >= 0;
+        }
+
+        private boolean hasDefaultReferences() {
+            return defaultReferences;
+        }
+
+        private int getIndex() {
+            return index;
         }
     }
 
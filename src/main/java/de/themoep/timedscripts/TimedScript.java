@@ -4,26 +4,26 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 /**
  * TimedScripts
@@ -42,66 +42,157 @@ import java.util.regex.Pattern;
  * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
  */
 public class TimedScript {
+    private static final Set<PosixFilePermission> FILE_PERMISSIONS = EnumSet.of(
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+            PosixFilePermission.OTHERS_READ
+    );
+
     private final File file;
+    private final long loadTime = System.nanoTime();
+    private final JavaPlugin plugin;
+    private final ScriptCache cache;
+    private final CompiledCache compiled;
+    private final ScriptJournal journal;
+    private final AtomicInteger edits = new AtomicInteger();
+    private final Object loadLock = new Object();
     private String name;
     private String creatorName;
     private UUID creatorId = UUID.fromString("00000000-0000-0000-0000-000000000000");
-    private Map<Double, List<TimedCommand>> commands = new LinkedHashMap<Double, List<TimedCommand>>();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(1, Timeline.EMPTY, Collections.emptySet()));
+    private volatile long savedVersion = 1;
+    private volatile long fileSize = 0;
+    private volatile long lastModified = 0;
+    private volatile ScriptSaver saver = null;
+    private volatile boolean deleted = false;
+    private volatile List<String> fileHead = null;
+    private volatile List<ScriptParser.Diagnostic> diagnostics = Collections.emptyList();
 
     public TimedScript(JavaPlugin plugin, File file) throws IOException {
-        plugin.getLogger().info("Loading " + file.getName() + "...");
+        this(plugin, file, null, null);
+    }
+
+    /**
+     * Load a script from a file
+     * @param plugin   The plugin
+     * @param file     The file to load from
+     * @param cache    The cache to load the commands lazily into; <tt>null</tt> to load them directly
+     * @param compiled The compiled scripts to use instead of parsing the file; <tt>null</tt> to always parse it
+     * @throws IOException When the file could not be read
+     */
+    public TimedScript(JavaPlugin plugin, File file, ScriptCache cache, CompiledCache compiled) throws IOException {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.compiled = compiled;
         this.file = file;
+        this.journal = new ScriptJournal(file);
         this.name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+        if (cache != null) {
+            readHeader();
+            snapshot.set(null);
+        } else {
+            plugin.getLogger().info("Loading " + file.getName() + "...");
+            snapshot.set(read(1));
+        }
+    }
 
-        Pattern authorPattern = Pattern.compile("Author: (\\w+)");
-        Pattern uuidPattern = Pattern.compile("(\\w{8}-\\w{4}-\\w{4}-\\w{4}-\\w{12})");
+    /**
+     * Only read the header comments of the file with the author information
+     * @throws IOException When the file could not be read
+     */
+    private void readHeader() throws IOException {
+        fileSize = file.length();
+        lastModified = file.lastModified();
+        apply(ScriptParser.parseHeader(file.toPath()));
+    }
 
-        double currentTime = 0;
+    /**
+     * Take over the author information of a parsed file and report its problems
+     * @param result The result of the ScriptParser
+     */
+    private void apply(ScriptParser.Result result) {
+        if (result.getCreatorName() != null) {
+            creatorName = result.getCreatorName();
+            fileHead = null;
+        }
+        if (result.getCreatorId() != null) {
+            creatorId = result.getCreatorId();
+            fileHead = null;
+        }
+        diagnostics = result.getDiagnostics();
+        if (!diagnostics.isEmpty()) {
+            plugin.getLogger().warning("Found " + diagnostics.size() + " problem(s) in " + file.getName() + ", first " + diagnostics.get(0)
+                    + (diagnostics.size() > 1 ? " (use /timedscript info " + name + " to see more)" : ""));
+        }
+    }
 
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line;
-        int lineNumber = 0;
-        while ((line = reader.readLine()) != null) {
-            lineNumber++;
-            if (line.startsWith("#")) {
-                Matcher authorMatcher = authorPattern.matcher(line);
-                if (authorMatcher.find()) {
-                    creatorName = authorMatcher.group(1);
-                }
-                Matcher uuidMatcher = uuidPattern.matcher(line);
-                if (uuidMatcher.find()) {
-                    try {
-                        creatorId = UUID.fromString(uuidMatcher.group(1));
-                    } catch (IllegalArgumentException ignored) {
-                        plugin.getLogger().warning(uuidMatcher.group(1) + " doesn't appear to be a valid uuid! Could not set creator id correctly!");
-                    }
-                }
-            } else if (line.startsWith("-")) {
-                addCommand(currentTime, line.substring(1), false);
-            } else if (line.contains(":")) {
-                String timeStr = line.substring(0, line.indexOf(':'));
-                try {
-                    currentTime = Double.parseDouble(timeStr);
-                    if (line.length() > timeStr.length() + 1) {
-                        addCommand(currentTime, line.substring(timeStr.length() + 1), false);
-                    }
-                } catch (NumberFormatException e) {
-                    plugin.getLogger().severe("Expected double on line " + lineNumber + ", found " + timeStr + "!");
-                    plugin.getLogger().severe("Trying to parse the rest of the script anyways...");
-                }
+    /**
+     * Read the whole script file
+     * @param version The version that the snapshot should have
+     * @return The Snapshot with the commands of the file
+     * @throws IOException When the file could not be read
+     */
+    private Snapshot read(long version) throws IOException {
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        if (compiled != null) {
+            CompiledCache.Compiled compiledScript = compiled.read(file, fileSize, lastModified);
+            if (compiledScript != null) {
+                creatorName = compiledScript.getCreatorName();
+                creatorId = compiledScript.getCreatorId();
+                fileHead = null;
+                diagnostics = Collections.emptyList();
+                return replay(version, compiledScript.getRevision(), compiledScript.getTimeline());
             }
         }
-        reader.close();
 
+        ScriptParser.Result result = ScriptParser.parse(file.toPath());
+        apply(result);
+        Timeline timeline = result.getTimeline();
+        if (compiled != null && !result.hasErrors()) {
+            // Files with errors are parsed again so that they still get reported, warnings only on the first parse
+            compiled.write(file, fileSize, lastModified, creatorName, creatorId, result.getRevision(), timeline);
+        }
+        return replay(version, result.getRevision(), timeline);
+    }
+
+    /**
+     * Apply the edits from the journal that aren't contained in the script file yet
+     * @param version  The version that the snapshot should at least have
+     * @param revision The revision of the script file
+     * @param timeline The timeline read from the script file
+     * @return The Snapshot with all edits
+     * @throws IOException When the journal could not be read
+     */
+    private Snapshot replay(long version, long revision, Timeline timeline) throws IOException {
+        ScriptJournal.Replay replay = journal.replay(timeline, revision);
+        if (replay.getDropped() > 0) {
+            plugin.getLogger().warning("Removed " + replay.getDropped() + " bytes of an incomplete edit from " + journal.getFile().getName());
+        }
+        version = Math.max(version, replay.getVersion());
+        savedVersion = version;
+        return new Snapshot(version, replay.getTimeline(), null);
     }
 
     public TimedScript(File scriptFolder, String name, CommandSender creator) {
+        this.plugin = null;
+        this.cache = null;
+        this.compiled = null;
         this.file = new File(scriptFolder, name + ".txt");
+        this.journal = new ScriptJournal(file);
         this.name = name;
         this.creatorName = creator.getName();
         if (creator instanceof Player) {
             creatorId = ((Player) creator).getUniqueId();
         }
+        try {
+            // Edits of a deleted script with the same name
+            journal.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         save();
     }
 
@@ -134,20 +225,38 @@ public class TimedScript {
     }
 
     /**
-     * Add a command at a specific time
+     * Add a command at a specific time. If writing the file fails then the command gets removed again.
      * @param time      The time (in seconds)
      * @param command   The TimedCommand to add
      * @param writeFile Whether or not the scripts should be written to file
      */
     public boolean addCommand(double time, TimedCommand command, boolean writeFile) {
-        if (!commands.containsKey(time) || commands.get(time) == null) {
-            commands.put(time, new ArrayList<>());
-        }
-        commands.get(time).add(command);
-        if (writeFile) {
-            return save();
+        edits.incrementAndGet();
+        try {
+            Snapshot current;
+            do {
+                current = getSnapshot();
+            } while (!snapshot.compareAndSet(current, current.add(time, command)));
+            if (writeFile && !persist(time)) {
+                // Only remove the failed command, edits that happened in the meantime are kept
+                do {
+                    current = getSnapshot();
+                    List<TimedCommand> entry = current.getTimeline().getCommands(time);
+                    if (entry == null || !entry.contains(command)) {
+                        break;
+                    }
+                    List<TimedCommand> commands = new ArrayList<>(entry);
+                    commands.removeIf(c -> c == command);
+                    if (snapshot.compareAndSet(current, current.with(time, commands))) {
+                        break;
+                    }
+                } while (true);
+                return false;
+            }
+            return true;
+        } finally {
+            edits.decrementAndGet();
         }
-        return true;
     }
 
     public TimedCommand setCommand(double time, int index, String command) {
@@ -155,12 +264,25 @@ public class TimedScript {
     }
 
     public TimedCommand setCommand(double time, int index, TimedCommand command) {
-        if (getCommands(time) == null || getCommands(time).size() <= index) {
-            return null;
+        edits.incrementAndGet();
+        try {
+            Snapshot current;
+            TimedCommand r;
+            List<TimedCommand> commands;
+            do {
+                current = getSnapshot();
+                List<TimedCommand> entry = current.getTimeline().getCommands(time);
+                if (entry == null || index < 0 || entry.size() <= index) {
+                    return null;
+                }
+                commands = new ArrayList<>(entry);
+                r = commands.set(index, command);
+            } while (!snapshot.compareAndSet(current, current.with(time, commands)));
+            persist(time);
+            return r;
+        } finally {
+            edits.decrementAndGet();
         }
-        TimedCommand r = getCommands(time).set(index, command);
-        save();
-        return r;
     }
 
     /**
@@ -170,12 +292,25 @@ public class TimedScript {
      * @return The old TimedCommand object; <tt>null</tt> if there is none with this index or that time
      */
     public TimedCommand removeCommand(double time, int index) {
-        if (index < 0 || commands.get(time) == null || getCommands(time).size() >= index) {
-            return null;
+        edits.incrementAndGet();
+        try {
+            Snapshot current;
+            TimedCommand r;
+            List<TimedCommand> commands;
+            do {
+                current = getSnapshot();
+                List<TimedCommand> entry = current.getTimeline().getCommands(time);
+                if (entry == null || index < 0 || entry.size() <= index) {
+                    return null;
+                }
+                commands = new ArrayList<>(entry);
+                r = commands.remove(index);
+            } while (!snapshot.compareAndSet(current, current.with(time, commands)));
+            persist(time);
+            return r;
+        } finally {
+            edits.decrementAndGet();
         }
-        TimedCommand r = getCommands(time).remove(index);
-        save();
-        return r;
     }
 
     /**
@@ -185,30 +320,164 @@ public class TimedScript {
      * @return The amount of commands removed; -1 if there where not entry at the specified time
      */
     public int removeCommand(double time, String commandString) {
-        if (commands.get(time) == null) {
-            return -1;
+        edits.incrementAndGet();
+        try {
+            Snapshot current;
+            List<TimedCommand> entry;
+            List<TimedCommand> commands;
+            do {
+                current = getSnapshot();
+                entry = current.getTimeline().getCommands(time);
+                if (entry == null) {
+                    return -1;
+                }
+                commands = new ArrayList<>(entry);
+                commands.removeIf(command -> command.getCommand().equalsIgnoreCase(commandString));
+            } while (!snapshot.compareAndSet(current, current.with(time, commands)));
+            persist(time);
+            return entry.size() - commands.size();
+        } finally {
+            edits.decrementAndGet();
         }
-        int startSize = getCommands(time).size();
-        getCommands(time).removeIf(command -> command.getCommand().equalsIgnoreCase(commandString));
-        save();
-        return startSize - getCommands(time).size();
     }
 
     /**
      * Get a list of commands at a specific time
      * @param time The time (in seconds)
-     * @return The list of TimedCommands; null if there are none
+     * @return The unmodifiable list of TimedCommands; null if there are none
      */
     public List<TimedCommand> getCommands(double time) {
-        return commands.get(time);
+        return getTimeline().getCommands(time);
     }
 
     /**
      * Returns a copy of the commands
-     * @return
+     * @return A map of the times sorted ascending to unmodifiable lists of their commands
+     * @deprecated Use {@link #getTimeline()} which doesn't copy anything
      */
+    @Deprecated
     public Map<Double, List<TimedCommand>> getCommands() {
-        return new HashMap<>(commands);
+        return getTimeline().toMap();
+    }
+
+    /**
+     * Get the current version of this script. Every edit publishes a new Snapshot,
+     * runs and other readers keep using the one they got.
+     * @return The current Snapshot
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            current = load();
+        } else if (cache != null) {
+            cache.touch(this, current);
+        }
+        return current;
+    }
+
+    /**
+     * Read the commands of a lazily loaded script from its file
+     * @return The loaded Snapshot, an empty one if the file could not be read
+     */
+    private Snapshot load() {
+        synchronized (loadLock) {
+            Snapshot current = snapshot.get();
+            if (current == null) {
+                try {
+                    current = read(savedVersion);
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Error while loading script " + file.getName() + "!", e);
+                    // Don't remember the empty version so that the next access tries again
+                    return new Snapshot(savedVersion, Timeline.EMPTY, Collections.emptySet());
+                }
+                snapshot.set(current);
+            }
+            cache.touch(this, current);
+            return current;
+        }
+    }
+
+    /**
+     * Remove the commands of this script from memory if they are saved in the file
+     * @return <tt>true</tt> if they were removed; <tt>false</tt> if there are unsaved changes or they weren't loaded
+     */
+    boolean evict() {
+        Snapshot current = snapshot.get();
+        // Edits in progress might not have reached the file or journal yet
+        return edits.get() == 0 && current != null && current.getVersion() == savedVersion && snapshot.compareAndSet(current, null);
+    }
+
+    /**
+     * Check whether or not the commands of this script are in memory
+     * @return <tt>true</tt> if they are loaded; <tt>false</tt> if they will be read from the file on the next use
+     */
+    public boolean isLoaded() {
+        return snapshot.get() != null;
+    }
+
+    /**
+     * Get the time sorted entries of this script
+     * @return The current Timeline, it doesn't change when the script gets edited
+     */
+    public Timeline getTimeline() {
+        return getSnapshot().getTimeline();
+    }
+
+    /**
+     * Get the version of this script, increased with every edit
+     * @return The version number, starting at 1 or the revision of the script file when the script was loaded
+     */
+    public long getVersion() {
+        return getSnapshot().getVersion();
+    }
+
+    /**
+     * Get the names of all variables that are used in this script without a default value.
+     * A run needs values for all of these.
+     * @return An unmodifiable set of lower case variable names
+     */
+    public Set<String> getRequiredVariables() {
+        return getSnapshot().getRequiredVariables();
+    }
+
+    /**
+     * Get the problems that were found when the script file was last parsed
+     * @return An unmodifiable list of Diagnostics, empty if there were none
+     */
+    public List<ScriptParser.Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Get the file of this script
+     * @return The file the script is stored in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get when this script object was loaded or created
+     * @return The {@link System#nanoTime()} at creation
+     */
+    long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Get the size of the script file when it was last read or written
+     * @return The size in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Get the modification time of the script file when it was last read or written
+     * @return The unix timestamp in milliseconds
+     */
+    public long getLastModified() {
+        return lastModified;
     }
 
     public String getName() {
@@ -224,6 +493,9 @@ public class TimedScript {
     }
 
     private List<String> getFileHead() {
+        if (fileHead != null) {
+            return fileHead;
+        }
         List<String> headText = new ArrayList<String>();
         headText.add("TimedScript: " + getName());
         headText.add("Author: " + getCreatorName() + " (" + getCreatorId() + ")");
@@ -249,60 +521,130 @@ public class TimedScript {
             head.add("# " + headLine + " #");
         }
         head.add("# " + divider + " #");
+        fileHead = head;
         return head;
     }
 
-    public boolean save() {
-        BufferedWriter writer = null;
-        try {
-            file.createNewFile();
-            try {
-                Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-                //add owners permission
-                perms.add(PosixFilePermission.OWNER_READ);
-                perms.add(PosixFilePermission.OWNER_WRITE);
-                //add group permissions
-                perms.add(PosixFilePermission.GROUP_READ);
-                perms.add(PosixFilePermission.GROUP_WRITE);
-                //add others permissions
-                perms.add(PosixFilePermission.OTHERS_READ);
-                Files.setPosixFilePermissions(Paths.get(file.getPath()), perms);
-            } catch (UnsupportedOperationException e) {
-                // Not able to set file permission, lets hope the system does it correctly...
-            }
+    /**
+     * Set the saver that writes this script after edits
+     * @param saver The ScriptSaver; <tt>null</tt> to save directly after every edit
+     */
+    void setSaver(ScriptSaver saver) {
+        this.saver = saver;
+    }
 
-            writer = new BufferedWriter(new FileWriter(file));
+    /**
+     * Save the script after an edit, either directly or with the saver
+     * @return <tt>true</tt> if the save was successful or scheduled
+     */
+    private boolean requestSave() {
+        ScriptSaver saver = this.saver;
+        if (saver != null) {
+            return saver.save(this);
+        }
+        return save();
+    }
 
-            for (String headLine : getFileHead()) {
-                writer.write(headLine);
-                writer.newLine();
+    /**
+     * Persist an edit of an entry, either by appending it to the journal or by saving the script
+     * @param time The time of the edited entry
+     * @return <tt>true</tt> if the edit was persisted or the save was scheduled
+     */
+    private boolean persist(double time) {
+        ScriptSaver saver = this.saver;
+        if (saver == null || !saver.isJournaling()) {
+            return requestSave();
+        }
+        if (deleted) {
+            return false;
+        }
+        synchronized (journal) {
+            // Records always contain the latest state so their order matches the versions
+            Snapshot current = snapshot.get();
+            try {
+                journal.append(current.getVersion(), time, current.getTimeline().getCommands(time));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
             }
+            if (current.getVersion() > savedVersion) {
+                savedVersion = current.getVersion();
+            }
+        }
+        if (journal.getSize() >= saver.getCompactAfter()) {
+            saver.compact(this);
+        }
+        return true;
+    }
 
-            for (Map.Entry<Double, List<TimedCommand>> entry : commands.entrySet()) {
-                if (entry.getValue() == null || entry.getValue().size() == 0) {
-                    continue;
-                }
-                writer.write(Utils.formatTime(entry.getKey()) + ":");
-                if (entry.getValue().size() == 1) {
-                    writer.write(" " + entry.getValue().get(0));
+    /**
+     * Write the script to its file. The content gets written to a temporary file first
+     * which then replaces the script file so that it's never only partially written.
+     * Afterwards the edits that are contained in the file are removed from the journal.
+     * @return <tt>true</tt> if the script was saved; <tt>false</tt> if an error occurred or it was deleted
+     */
+    public synchronized boolean save() {
+        if (deleted) {
+            return false;
+        }
+        Snapshot saved = getSnapshot();
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (String headLine : getFileHead()) {
+                    writer.write(headLine);
                     writer.newLine();
-                } else {
+                }
+                ScriptSaver saver = this.saver;
+                if (saver != null && saver.isJournaling()) {
+                    writer.write("# Revision: " + saved.getVersion());
                     writer.newLine();
-                    for (TimedCommand command : entry.getValue()) {
-                        writer.write("- " + command);
+                }
+
+                Timeline timeline = saved.getTimeline();
+                for (int i = 0; i < timeline.size(); i++) {
+                    List<TimedCommand> entry = timeline.getCommands(i);
+                    writer.write(Utils.formatTime(timeline.getTime(i)) + ":");
+                    if (entry.size() == 1) {
+                        writer.write(" " + entry.get(0));
                         writer.newLine();
+                    } else {
+                        writer.newLine();
+                        for (TimedCommand command : entry) {
+                            writer.write("- " + command);
+                            writer.newLine();
+                        }
                     }
                 }
             }
-
+            try {
+                Files.setPosixFilePermissions(temp, FILE_PERMISSIONS);
+            } catch (UnsupportedOperationException e) {
+                // Not able to set file permission, lets hope the system does it correctly...
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
-        } finally {
             try {
-                writer.close();
-            } catch (Exception ignored) {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
             }
+            return false;
+        }
+        if (saved.getVersion() > savedVersion) {
+            savedVersion = saved.getVersion();
+        }
+        fileSize = file.length();
+        lastModified = file.lastModified();
+        try {
+            journal.compact(saved.getVersion());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return true;
     }
@@ -311,7 +653,11 @@ public class TimedScript {
      * Deletes the script on the file system
      * @return <tt>true</tt> if the file was successfully "deleted" (archived); <tt>false</tt> if that didn't work
      */
-    public boolean delete() {
+    public synchronized boolean delete() {
+        if (journal.getSize() > 0 && !save()) {
+            // The archived file would miss the edits of the journal
+            return false;
+        }
         String path = "-" + file.getPath();
         int i = 0;
         while (file.renameTo(new File(path))) {
@@ -321,6 +667,77 @@ public class TimedScript {
                 return false;
             }
         }
+        deleted = !file.exists();
+        if (deleted) {
+            try {
+                journal.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         return true;
     }
+
+    /**
+     * An immutable version of the script's commands
+     */
+    public static class Snapshot {
+        private final long version;
+        private final Timeline timeline;
+        private final Set<String> requiredVariables;
+
+        private Snapshot(long version, Timeline timeline, Set<String> requiredVariables) {
+            this.version = version;
+            this.timeline = timeline;
+            if (requiredVariables == null) {
+                Set<String> required = new HashSet<>();
+                for (int i = 0; i < timeline.size(); i++) {
+                    for (TimedCommand command : timeline.getCommands(i)) {
+                        required.addAll(command.getRequiredVariables());
+                    }
+                }
+                requiredVariables = Collections.unmodifiableSet(required);
+            }
+            this.requiredVariables = requiredVariables;
+        }
+
+        private Snapshot add(double time, TimedCommand command) {
+            Set<String> required = requiredVariables;
+            Set<String> commandRequired = command.getRequiredVariables();
+            if (!required.containsAll(commandRequired)) {
+                Set<String> newRequired = new HashSet<>(required);
+                newRequired.addAll(commandRequired);
+                required = Collections.unmodifiableSet(newRequired);
+            }
+            return new Snapshot(version + 1, timeline.with(time, command), required);
+        }
+
+        private Snapshot with(double time, List<TimedCommand> commands) {
+            return new Snapshot(version + 1, timeline.with(time, commands), null);
+        }
+
+        /**
+         * Get the version number of this snapshot
+         * @return The version number
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the time sorted entries
+         * @return The Timeline
+         */
+        public Timeline getTimeline() {
+            return timeline;
+        }
+
+        /**
+         * Get the names of all variables that are used without a default value
+         * @return An unmodifiable set of lower case variable names
+         */
+        public Set<String> getRequiredVariables() {
+            return requiredVariables;
+        }
+    }
 }
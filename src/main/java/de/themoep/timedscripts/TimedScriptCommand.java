@@ -10,6 +10,7 @@ import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +54,10 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                 sender.sendMessage(ChatColor.RED + "Usage: " + action.getUsage(label));
                 return true;
             }
+            if (!plugin.getScriptManager().isReady()) {
+                sender.sendMessage(ChatColor.RED + "Scripts are still loading, please try again in a moment!");
+                return true;
+            }
             TimedScript script = plugin.getScriptManager().getScript(args[1]);
             if (action == Action.CREATE) {
                 if (sender instanceof Player && !sender.hasPermission("timedscripts.command.create")) {
@@ -166,26 +171,48 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                 }
             }
 
-            sender.sendMessage(ChatColor.GREEN + "Started script " + ChatColor.YELLOW + script.getName());
-            plugin.getScriptManager().runScript(runAs, script, vars);
+            ScriptRun run = plugin.getScriptManager().runScript(runAs, script, vars);
+            if (run != null) {
+                if (run.getState() == ScriptRun.State.QUEUED) {
+                    sender.sendMessage(ChatColor.GREEN + "Queued script " + ChatColor.YELLOW + script.getName() + ChatColor.GREEN + " as run #" + run.getId());
+                } else {
+                    sender.sendMessage(ChatColor.GREEN + "Started script " + ChatColor.YELLOW + script.getName() + ChatColor.GREEN + " as run #" + run.getId());
+                }
+            }
 
         } else if (action == Action.INFO) {
-            int commandCount = 0;
-            for (List<TimedCommand> commands : script.getCommands().values()) {
-                commandCount += commands.size();
-            }
+            TimedScript.Snapshot snapshot = script.getSnapshot();
+            Timeline timeline = snapshot.getTimeline();
+            int commandCount = timeline.getCommandCount();
             List<String> msg = new ArrayList<String>();
             msg.add(ChatColor.AQUA + "Info for script " + ChatColor.YELLOW + script.getName() + ChatColor.AQUA + ":");
             if (!plugin.getConfig().getString("webinterface", "").isEmpty()) {
                 msg.add(ChatColor.AQUA + "Link: " + ChatColor.YELLOW + plugin.getConfig().getString("webinterface", "").replace("%script%", script.getName()));
             }
             msg.add(ChatColor.AQUA + "Creator: " + ChatColor.YELLOW + script.getCreatorName() + ChatColor.AQUA + "(" + script.getCreatorId() + ")");
-            msg.add(ChatColor.AQUA + "Contains " + ChatColor.YELLOW + commandCount + ChatColor.AQUA + " command" + (commandCount != 1 ? "s" : "") + " at " + ChatColor.YELLOW + script.getCommands().size() + ChatColor.AQUA + " different times!");
+            msg.add(ChatColor.AQUA + "Version: " + ChatColor.YELLOW + snapshot.getVersion());
+            List<String> required = new ArrayList<>(snapshot.getRequiredVariables());
+            Collections.sort(required);
+            msg.add(ChatColor.AQUA + "Required variables: " + ChatColor.YELLOW + (required.isEmpty() ? "none" : StringUtils.join(required.toArray(), ", ")));
+            msg.add(ChatColor.AQUA + "Contains " + ChatColor.YELLOW + commandCount + ChatColor.AQUA + " command" + (commandCount != 1 ? "s" : "") + " at " + ChatColor.YELLOW + timeline.size() + ChatColor.AQUA + " different times!");
+            List<ScriptParser.Diagnostic> diagnostics = script.getDiagnostics();
+            if (!diagnostics.isEmpty()) {
+                msg.add(ChatColor.AQUA + "Problems in the file: " + ChatColor.YELLOW + diagnostics.size());
+                for (int i = 0; i < diagnostics.size() && i < 5; i++) {
+                    ScriptParser.Diagnostic diagnostic = diagnostics.get(i);
+                    ChatColor color = diagnostic.getSeverity() == ScriptParser.Diagnostic.Severity.ERROR ? ChatColor.RED : ChatColor.GOLD;
+                    msg.add(color + "  Line " + diagnostic.getLine() + ":" + diagnostic.getColumn() + ": " + diagnostic.getMessage());
+                }
+                if (diagnostics.size() > 5) {
+                    msg.add(ChatColor.GRAY + "  ...and " + (diagnostics.size() - 5) + " more");
+                }
+            }
 
             sender.sendMessage(msg.toArray(new String[msg.size()]));
 
         } else if (action == Action.VIEW) {
-            if (script.getCommands().size() == 0) {
+            Timeline timeline = script.getTimeline();
+            if (timeline.isEmpty()) {
                 sender.sendMessage(ChatColor.RED + "The script " + ChatColor.YELLOW + script.getName() + ChatColor.RED + " does not have any commands defined yet!");
                 return true;
             }
@@ -194,7 +221,7 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
             if (args.length > 0) {
                 try {
                     time = Double.valueOf(args[0]);
-                    List<TimedCommand> commands = script.getCommands(time);
+                    List<TimedCommand> commands = timeline.getCommands(time);
                     if (commands == null || commands.size() == 0) {
                         sender.sendMessage(ChatColor.RED + "The script " + ChatColor.YELLOW + script.getName() + ChatColor.RED + " does not have any commands at " + ChatColor.YELLOW + time);
                         return true;
@@ -208,10 +235,11 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                     return true;
                 }
             } else {
-                for (Map.Entry<Double, List<TimedCommand>> entry : script.getCommands().entrySet()) {
-                    for (int i = 0; i < entry.getValue().size(); i++) {
-                        TimedCommand command = entry.getValue().get(i);
-                        commandList.add(ChatColor.GRAY + "#" + i + " " + ChatColor.DARK_GRAY + Utils.formatTime(entry.getKey()) + ": " + ChatColor.GRAY + command);
+                for (int j = 0; j < timeline.size(); j++) {
+                    List<TimedCommand> commands = timeline.getCommands(j);
+                    for (int i = 0; i < commands.size(); i++) {
+                        TimedCommand command = commands.get(i);
+                        commandList.add(ChatColor.GRAY + "#" + i + " " + ChatColor.DARK_GRAY + Utils.formatTime(timeline.getTime(j)) + ": " + ChatColor.GRAY + command);
                     }
                 }
             }
@@ -238,6 +266,32 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
             } else {
                 sender.sendMessage(ChatColor.YELLOW + "Script " + script.getName() + " was not running!");
             }
+        } else if (action == Action.PAUSE || action == Action.RESUME || action == Action.SEEK) {
+            double time = 0;
+            if (action == Action.SEEK) {
+                if (args.length == 0) {
+                    return false;
+                }
+                try {
+                    time = Double.valueOf(args[0]);
+                } catch (NumberFormatException e) {
+                    sender.sendMessage(ChatColor.RED + "Error: " + args[0] + " is not a valid double number input!");
+                    return true;
+                }
+            }
+            int changed = 0;
+            for (ScriptRun run : plugin.getScriptManager().getRuns(script)) {
+                if (action == Action.PAUSE ? run.pause() : action == Action.RESUME ? run.resume() : run.seek(time)) {
+                    changed++;
+                }
+            }
+            if (changed > 0) {
+                String result = action == Action.PAUSE ? "Paused" : action == Action.RESUME ? "Resumed" : "Moved";
+                sender.sendMessage(ChatColor.GREEN + result + " " + ChatColor.YELLOW + changed + ChatColor.GREEN + " run" + (changed != 1 ? "s" : "") + " of script " + ChatColor.YELLOW + script.getName()
+                        + (action == Action.SEEK ? ChatColor.GREEN + " to " + ChatColor.YELLOW + Utils.formatTime(time) : ""));
+            } else {
+                sender.sendMessage(ChatColor.YELLOW + "Script " + script.getName() + " has no " + (action == Action.RESUME ? "paused" : "running") + " runs!");
+            }
         } else if (action == Action.RELOAD) {
             plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
                 if (plugin.getScriptManager().loadScript(script.getName()) != null) {
@@ -261,6 +315,9 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
         SAVE,
         DELETE,
         STOP,
+        PAUSE,
+        RESUME,
+        SEEK("<time>"),
         RELOAD;
 
         private final String usage;
@@ -293,11 +350,12 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                 return false;
             }
             String command = StringUtils.join(args, ' ');
-            if (script.addCommand(time, command)) {
-                sender.sendMessage(ChatColor.GREEN + "Added the following command to script " + ChatColor.YELLOW + script.getName() + ChatColor.GREEN + " at position " + (script.getCommands(time).size() - 1) + " :");
+            TimedCommand timedCommand = new TimedCommand(command);
+            if (script.addCommand(time, timedCommand)) {
+                List<TimedCommand> commands = script.getCommands(time);
+                sender.sendMessage(ChatColor.GREEN + "Added the following command to script " + ChatColor.YELLOW + script.getName() + ChatColor.GREEN + " at position " + (commands != null ? commands.lastIndexOf(timedCommand) : -1) + " :");
             } else {
                 sender.sendMessage(ChatColor.RED + "Error while trying to add command to script " + ChatColor.YELLOW + script.getName() + ChatColor.RED + "! Take a look at the log for the exact error!");
-                script.getCommands(time).remove(script.getCommands(time).size() - 1);
             }
             sender.sendMessage(ChatColor.WHITE + Utils.formatTime(time) + ": " + ChatColor.GRAY + command);
 
@@ -402,8 +460,9 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                             tabList.add(editAction.toString().toLowerCase());
                         }
                     } else if (action == Action.VIEW) {
-                        for (Double time : script.getCommands().keySet()) {
-                            tabList.add(Utils.formatTime(time));
+                        Timeline timeline = script.getTimeline();
+                        for (int i = 0; i < timeline.size(); i++) {
+                            tabList.add(Utils.formatTime(timeline.getTime(i)));
                         }
                     }
 
@@ -429,8 +488,9 @@ public class TimedScriptCommand implements CommandExecutor, TabCompleter {
                             }
                         }
                     } else if (action == Action.VIEW) {
-                        for (Double time : script.getCommands().keySet()) {
-                            String timeFormat = Utils.formatTime(time);
+                        Timeline timeline = script.getTimeline();
+                        for (int i = 0; i < timeline.size(); i++) {
+                            String timeFormat = Utils.formatTime(timeline.getTime(i));
                             if (timeFormat.startsWith(args[2].toLowerCase())) {
                                 tabList.add(timeFormat);
                             }
@@ -3,11 +3,16 @@ package de.themoep.timedscripts;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.logging.Level;
 
 /**
  * TimedScripts
@@ -29,6 +34,21 @@ public class TimedScripts extends JavaPlugin {
 
     private ScriptManager scriptManager;
 
+    public TimedScripts() {
+        super();
+    }
+
+    /**
+     * Create the plugin without a server loading it, e.g. to benchmark it
+     * @param loader      The loader of the stand-in server
+     * @param description The description of the plugin
+     * @param dataFolder  The folder for the config and scripts
+     * @param file        The plugin file
+     */
+    protected TimedScripts(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     public void onEnable() {
         saveDefaultConfig();
         scriptManager = new ScriptManager(this);
@@ -36,6 +56,12 @@ public class TimedScripts extends JavaPlugin {
         getCommand("timedscript").setExecutor(new TimedScriptCommand(this));
     }
 
+    public void onDisable() {
+        if (scriptManager != null) {
+            scriptManager.destroy();
+        }
+    }
+
     public ScriptManager getScriptManager() {
         return scriptManager;
     }
@@ -46,22 +72,47 @@ public class TimedScripts extends JavaPlugin {
                 if (sender.hasPermission("timedscripts.admin")) {
                     boolean stop = false;
                     boolean reload = false;
+                    boolean runs = false;
+                    boolean stats = false;
+                    boolean dump = false;
+                    boolean profile = false;
                     List<String> scripts = new ArrayList<>();
                     for (String arg : args) {
                         if ("load".equalsIgnoreCase(arg) || "reload".equalsIgnoreCase(arg)) {
                             reload = true;
-                        } else if ("stop".equalsIgnoreCase(args[0])) {
+                        } else if ("stop".equalsIgnoreCase(arg)) {
                             stop = true;
+                        } else if ("runs".equalsIgnoreCase(arg)) {
+                            runs = true;
+                        } else if ("stats".equalsIgnoreCase(arg)) {
+                            stats = true;
+                        } else if ("dump".equalsIgnoreCase(arg)) {
+                            dump = true;
+                        } else if ("profile".equalsIgnoreCase(arg)) {
+                            profile = true;
                         } else {
                             scripts.add(arg);
                         }
                     }
                     if (stop) {
                         if (scripts.isEmpty()) {
-                            scriptManager.destroy();
+                            scriptManager.stopAll();
                             sender.sendMessage(ChatColor.YELLOW + "All running scripts stopped!");
                         } else {
                             for (String scriptName : scripts) {
+                                if (scriptName.startsWith("#")) {
+                                    try {
+                                        int id = Integer.parseInt(scriptName.substring(1));
+                                        if (scriptManager.stopRun(id)) {
+                                            sender.sendMessage(ChatColor.YELLOW + "Run #" + id + " stopped!");
+                                        } else {
+                                            sender.sendMessage(ChatColor.YELLOW + "Run #" + id + " was not running!");
+                                        }
+                                    } catch (NumberFormatException e) {
+                                        sender.sendMessage(ChatColor.RED + scriptName.substring(1) + " is not a valid run id!");
+                                    }
+                                    continue;
+                                }
                                 TimedScript script = scriptManager.getScript(scriptName);
                                 if (script != null) {
                                     if (scriptManager.stopScript(script)) {
@@ -78,11 +129,16 @@ public class TimedScripts extends JavaPlugin {
                     }
                     if (reload) {
                         reloadConfig();
-                        getServer().getScheduler().runTaskAsynchronously(this, () -> {
-                            if (scripts.isEmpty()) {
-                                scriptManager.loadScripts();
-                                sender.sendMessage(ChatColor.GREEN + "All scripts reloaded!");
-                            } else {
+                        if (scripts.isEmpty()) {
+                            scriptManager.loadScripts().whenComplete((v, e) -> {
+                                if (e == null) {
+                                    sender.sendMessage(ChatColor.GREEN + "All scripts reloaded!");
+                                } else {
+                                    sender.sendMessage(ChatColor.RED + "Error while reloading the scripts! Please take a look at the log");
+                                }
+                            });
+                        } else {
+                            getServer().getScheduler().runTaskAsynchronously(this, () -> {
                                 for (String scriptName : scripts) {
                                     TimedScript script = scriptManager.loadScript(scriptName);
                                     if (script != null) {
@@ -91,10 +147,97 @@ public class TimedScripts extends JavaPlugin {
                                         sender.sendMessage(ChatColor.RED + scriptName + " could not be loaded? Please take a look at the log");
                                     }
                                 }
+                            });
+                        }
+                    }
+                    if (runs) {
+                        List<ScriptRun> runList = new ArrayList<>(scriptManager.getRuns());
+                        runList.sort(Comparator.comparingInt(ScriptRun::getId));
+                        sender.sendMessage(ChatColor.AQUA + "Active script runs: " + ChatColor.YELLOW + scriptManager.getActiveRunCount()
+                                + ChatColor.AQUA + " (" + ChatColor.YELLOW + scriptManager.getQueuedRunCount() + ChatColor.AQUA + " queued, "
+                                + ChatColor.YELLOW + scriptManager.getRejectedRunCount() + ChatColor.AQUA + " rejected)");
+                        CommandDispatcher dispatcher = scriptManager.getDispatcher();
+                        sender.sendMessage(ChatColor.AQUA + "Dispatched commands (" + dispatcher.getMode().toString().toLowerCase() + " mode): "
+                                + ChatColor.YELLOW + dispatcher.getDirectCount() + ChatColor.AQUA + " direct (avg " + ChatColor.YELLOW + dispatcher.getDirectAverage() + "ns" + ChatColor.AQUA + "), "
+                                + ChatColor.YELLOW + dispatcher.getServerCount() + ChatColor.AQUA + " by server (avg " + ChatColor.YELLOW + dispatcher.getServerAverage() + "ns" + ChatColor.AQUA + ")");
+                        if (runList.size() > 0) {
+                            for (ScriptRun run : runList) {
+                                sender.sendMessage(" #" + run.getId() + " " + run.getScript().getName() + " v" + run.getSnapshot().getVersion()
+                                        + ChatColor.GRAY + " " + run.getState().toString().toLowerCase()
+                                        + " as " + run.getSender().getName()
+                                        + " at " + Utils.formatTime(Math.floor(run.getElapsed() * 10) / 10) + "/" + Utils.formatTime(run.getDuration()) + "s"
+                                        + " (" + run.getProgress() + "/" + run.getSize() + " entries)");
+                            }
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "None");
+                        }
+                    }
+                    if (stats && !dump) {
+                        List<ScriptMetrics> metricsList = new ArrayList<>();
+                        for (ScriptMetrics metrics : scriptManager.getMetrics()) {
+                            if (scripts.isEmpty() || scripts.stream().anyMatch(metrics.getName()::equalsIgnoreCase)) {
+                                metricsList.add(metrics);
+                            }
+                        }
+                        // Most expensive scripts first
+                        metricsList.sort(Comparator.comparingLong((ScriptMetrics m) -> m.getDispatchTime().getSum()).reversed());
+                        sender.sendMessage(ChatColor.AQUA + "Script stats since the plugin was enabled:");
+                        if (metricsList.isEmpty()) {
+                            sender.sendMessage(ChatColor.RED + "None");
+                        }
+                        for (ScriptMetrics metrics : metricsList) {
+                            sender.sendMessage(" " + ChatColor.YELLOW + metrics.getName() + ChatColor.AQUA + ": runs "
+                                    + ChatColor.YELLOW + metrics.getRunsStarted() + ChatColor.AQUA + " started, "
+                                    + ChatColor.YELLOW + metrics.getRunsCompleted() + ChatColor.AQUA + " completed, "
+                                    + ChatColor.YELLOW + metrics.getRunsCancelled() + ChatColor.AQUA + " cancelled; commands "
+                                    + ChatColor.YELLOW + metrics.getCommandsDispatched() + ChatColor.AQUA + " dispatched, "
+                                    + ChatColor.YELLOW + metrics.getCommandsDropped() + ChatColor.AQUA + " dropped");
+                            ScriptMetrics.Histogram render = metrics.getRenderTime();
+                            ScriptMetrics.Histogram dispatch = metrics.getDispatchTime();
+                            ScriptMetrics.Histogram lateness = metrics.getLateness();
+                            sender.sendMessage(ChatColor.GRAY + "   render avg " + Utils.formatNanos(render.getMean()) + " p99 " + Utils.formatNanos(render.getPercentile(0.99))
+                                    + ", dispatch avg " + Utils.formatNanos(dispatch.getMean()) + " p99 " + Utils.formatNanos(dispatch.getPercentile(0.99))
+                                    + " max " + Utils.formatNanos(dispatch.getMax()) + " total " + Utils.formatNanos(dispatch.getSum())
+                                    + ", late avg " + lateness.getMean() + "ms p99 " + lateness.getPercentile(0.99) + "ms");
+                        }
+                    }
+                    if (dump) {
+                        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+                            try {
+                                File file = scriptManager.dumpMetrics();
+                                sender.sendMessage(ChatColor.GREEN + "Script stats written to " + file.getPath());
+                            } catch (IOException e) {
+                                getLogger().log(Level.SEVERE, "Could not write the script stats!", e);
+                                sender.sendMessage(ChatColor.RED + "Error while writing the script stats! Please take a look at the log");
                             }
                         });
                     }
-                    if (!stop && !reload) {
+                    if (profile) {
+                        TickProfiler profiler = scriptManager.getDispatcher().getProfiler();
+                        sender.sendMessage(ChatColor.AQUA + "Script time per tick: avg " + ChatColor.YELLOW + Utils.formatNanos(profiler.getAverage())
+                                + ChatColor.AQUA + " max " + ChatColor.YELLOW + Utils.formatNanos(profiler.getMax())
+                                + ChatColor.AQUA + " over " + ChatColor.YELLOW + profiler.getTicks() + ChatColor.AQUA + " ticks, "
+                                + ChatColor.YELLOW + profiler.getExceeded() + ChatColor.AQUA + " above "
+                                + (profiler.getThreshold() > 0 ? Utils.formatNanos(profiler.getThreshold()) : "the disabled threshold"));
+                        sender.sendMessage(ChatColor.AQUA + "Most expensive commands:");
+                        List<TickProfiler.Attribution> top = profiler.getTopAttributions(5);
+                        if (top.isEmpty()) {
+                            sender.sendMessage(ChatColor.RED + "None");
+                        }
+                        for (TickProfiler.Attribution attribution : top) {
+                            sender.sendMessage(" " + ChatColor.GRAY + attribution);
+                        }
+                        sender.sendMessage(ChatColor.AQUA + "Slowest ticks:");
+                        List<TickProfiler.Tick> worst = profiler.getWorstTicks();
+                        if (worst.isEmpty()) {
+                            sender.sendMessage(ChatColor.RED + "None");
+                        }
+                        for (TickProfiler.Tick tick : worst) {
+                            sender.sendMessage(" " + ChatColor.YELLOW + Utils.formatNanos(tick.getTotal()) + ChatColor.AQUA + " tick " + tick.getNumber()
+                                    + ChatColor.GRAY + " " + tick);
+                        }
+                    }
+                    if (!stop && !reload && !runs && !stats && !dump && !profile) {
                         return false;
                     }
                 } else {
@@ -104,11 +247,16 @@ public class TimedScripts extends JavaPlugin {
                 sender.sendMessage(ChatColor.AQUA + "List of TimedScripts:");
                 if (getScriptManager().getScripts().size() > 0) {
                     for (TimedScript script : getScriptManager().getScripts()) {
-                        sender.sendMessage(" " + script.getName() + " by " + script.getCreatorName());
+                        int running = getScriptManager().getRuns(script).size();
+                        sender.sendMessage(" " + script.getName() + " by " + script.getCreatorName() + (running > 0 ? ChatColor.GRAY + " (" + running + " running)" : ""));
                     }
                 } else {
                     sender.sendMessage(ChatColor.RED + "None");
                 }
+                ScriptCache cache = getScriptManager().getCache();
+                if (cache != null) {
+                    sender.sendMessage(ChatColor.GRAY + "" + cache.getLoaded() + " scripts in memory (size " + cache.getWeight() + "/" + cache.getCapacity() + ", " + cache.getEvictions() + " evictions)");
+                }
             }
         }
         return true;
@@ -122,7 +270,11 @@ public class TimedScripts extends JavaPlugin {
         String[] subCommands = {
                 "reload",
                 "load",
-                "stop"
+                "stop",
+                "runs",
+                "stats",
+                "dump",
+                "profile"
         };
         List<String> completions = new ArrayList<>();
         for (String string : subCommands) {
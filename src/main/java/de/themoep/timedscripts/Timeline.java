@@ -0,0 +1,310 @@
+package de.themoep.timedscripts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * The immutable, time sorted entries of a script. Entries are stored in parallel arrays
+ * of their times in seconds, their offsets in milliseconds and their commands.
+ * Changes create a new Timeline and leave the old one untouched.
+ */
+public class Timeline {
+    public static final Timeline EMPTY = new Timeline(new double[0], Utils.newListArray(0), 0);
+
+    private final double[] times;
+    private final long[] offsets;
+    private final List<TimedCommand>[] entries;
+    private final int commandCount;
+    private long fingerprint = 0;
+
+    private Timeline(double[] times, List<TimedCommand>[] entries, int commandCount) {
+        this.times = times;
+        this.entries = entries;
+        this.commandCount = commandCount;
+        this.offsets = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            offsets[i] = (long) (times[i] * 1000);
+        }
+    }
+
+    /**
+     * Get the amount of entries, that is the amount of different times with commands
+     * @return The amount of entries
+     */
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * Check whether or not this timeline has any entries
+     * @return <tt>true</tt> if there are no entries
+     */
+    public boolean isEmpty() {
+        return times.length == 0;
+    }
+
+    /**
+     * Get the amount of commands in all entries
+     * @return The amount of commands
+     */
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Get a hash of the times and commands of all entries. Timelines with the same
+     * entries have the same fingerprint, also across server restarts.
+     * @return The 64 bit FNV-1a hash of the entries
+     */
+    public long getFingerprint() {
+        long hash = fingerprint;
+        if (hash == 0) {
+            hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < times.length; i++) {
+                hash = (hash ^ Double.doubleToLongBits(times[i])) * 0x100000001b3L;
+                for (TimedCommand command : entries[i]) {
+                    String string = command.getCommand();
+                    for (int j = 0; j < string.length(); j++) {
+                        hash = (hash ^ string.charAt(j)) * 0x100000001b3L;
+                    }
+                    hash = (hash ^ '\n') * 0x100000001b3L;
+                }
+            }
+            fingerprint = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Get the time of an entry
+     * @param index The index of the entry
+     * @return The time in seconds
+     */
+    public double getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Get the time of an entry in milliseconds
+     * @param index The index of the entry
+     * @return The offset in milliseconds
+     */
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Get the commands of an entry
+     * @param index The index of the entry
+     * @return An unmodifiable list of the TimedCommands, never empty
+     */
+    public List<TimedCommand> getCommands(int index) {
+        return entries[index];
+    }
+
+    /**
+     * Get the commands at a specific time
+     * @param time The time in seconds
+     * @return An unmodifiable list of the TimedCommands; <tt>null</tt> if there are none at that time
+     */
+    public List<TimedCommand> getCommands(double time) {
+        int index = indexOf(time);
+        return index >= 0 ? entries[index] : null;
+    }
+
+    /**
+     * Get the index of the entry at a specific time
+     * @param time The time in seconds
+     * @return The index; <tt>-(insertion point) - 1</tt> if there is no entry at that time
+     */
+    public int indexOf(double time) {
+        return Arrays.binarySearch(times, time);
+    }
+
+    /**
+     * Get the index of the first entry at or after a specific time
+     * @param time The time in seconds
+     * @return The index; {@link #size()} if there is no such entry
+     */
+    public int ceilingIndex(double time) {
+        int index = indexOf(time);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Get the index of the first entry that is due after a specific time
+     * @param time The time in seconds
+     * @return The index; {@link #size()} if there is no such entry
+     */
+    public int higherIndex(double time) {
+        int index = indexOf(time);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Get the index of the first entry at or after a specific offset
+     * @param offset The offset in milliseconds
+     * @return The index; {@link #size()} if there is no such entry
+     */
+    public int ceilingIndex(long offset) {
+        int index = Arrays.binarySearch(offsets, offset);
+        if (index < 0) {
+            return -index - 1;
+        }
+        // Different times can round to the same offset
+        while (index > 0 && offsets[index - 1] == offset) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Get the entries in a range of time
+     * @param from The start time in seconds, inclusive
+     * @param to   The end time in seconds, exclusive
+     * @return A Timeline with the entries in the range
+     */
+    public Timeline range(double from, double to) {
+        int start = ceilingIndex(from);
+        int end = Math.max(ceilingIndex(to), start);
+        if (start == 0 && end == times.length) {
+            return this;
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            count += entries[i].size();
+        }
+        return new Timeline(Arrays.copyOfRange(times, start, end), Arrays.copyOfRange(entries, start, end), count);
+    }
+
+    /**
+     * Create a Timeline with a command added to the end of an entry
+     * @param time    The time of the entry in seconds
+     * @param command The command to add
+     * @return The new Timeline
+     */
+    public Timeline with(double time, TimedCommand command) {
+        List<TimedCommand> entry = getCommands(time);
+        List<TimedCommand> commands = new ArrayList<>(entry != null ? entry.size() + 1 : 1);
+        if (entry != null) {
+            commands.addAll(entry);
+        }
+        commands.add(command);
+        return with(time, commands);
+    }
+
+    /**
+     * Create a Timeline with the commands of an entry replaced
+     * @param time     The time of the entry in seconds
+     * @param commands The new commands; the entry gets removed if this is <tt>null</tt> or empty
+     * @return The new Timeline
+     */
+    public Timeline with(double time, List<TimedCommand> commands) {
+        int index = indexOf(time);
+        boolean remove = commands == null || commands.isEmpty();
+        if (index < 0 && remove) {
+            return this;
+        }
+        double[] newTimes;
+        List<TimedCommand>[] newEntries;
+        int count = commandCount;
+        if (index >= 0) {
+            count -= entries[index].size();
+            if (remove) {
+                newTimes = new double[times.length - 1];
+                newEntries = Utils.newListArray(entries.length - 1);
+                System.arraycopy(times, 0, newTimes, 0, index);
+                System.arraycopy(times, index + 1, newTimes, index, times.length - index - 1);
+                System.arraycopy(entries, 0, newEntries, 0, index);
+                System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+                return new Timeline(newTimes, newEntries, count);
+            }
+            newTimes = times.clone();
+            newEntries = entries.clone();
+        } else {
+            index = -index - 1;
+            newTimes = new double[times.length + 1];
+            newEntries = Utils.newListArray(entries.length + 1);
+            System.arraycopy(times, 0, newTimes, 0, index);
+            System.arraycopy(times, index, newTimes, index + 1, times.length - index);
+            System.arraycopy(entries, 0, newEntries, 0, index);
+            System.arraycopy(entries, index, newEntries, index + 1, entries.length - index);
+            newTimes[index] = time;
+        }
+        newEntries[index] = freeze(commands);
+        return new Timeline(newTimes, newEntries, count + commands.size());
+    }
+
+    /**
+     * Get the entries as a sorted map
+     * @return A new map of the times in seconds to unmodifiable lists of their commands
+     */
+    public TreeMap<Double, List<TimedCommand>> toMap() {
+        TreeMap<Double, List<TimedCommand>> map = new TreeMap<>();
+        for (int i = 0; i < times.length; i++) {
+            map.put(times[i], entries[i]);
+        }
+        return map;
+    }
+
+    private static List<TimedCommand> freeze(List<TimedCommand> commands) {
+        return Collections.unmodifiableList(Arrays.asList(commands.toArray(new TimedCommand[commands.size()])));
+    }
+
+    /**
+     * Builds a Timeline without copying it on every added command
+     */
+    public static class Builder {
+        private final TreeMap<Double, List<TimedCommand>> entries = new TreeMap<>();
+
+        /**
+         * Add a command to the end of an entry
+         * @param time    The time of the entry in seconds
+         * @param command The command to add
+         * @return This Builder
+         */
+        public Builder add(double time, TimedCommand command) {
+            entries.computeIfAbsent(time, t -> new ArrayList<>()).add(command);
+            return this;
+        }
+
+        /**
+         * Build the Timeline
+         * @return The new Timeline
+         */
+        public Timeline build() {
+            double[] times = new double[entries.size()];
+            List<TimedCommand>[] commands = Utils.newListArray(entries.size());
+            int count = 0;
+            int i = 0;
+            for (Map.Entry<Double, List<TimedCommand>> entry : entries.entrySet()) {
+                times[i] = entry.getKey();
+                commands[i] = freeze(entry.getValue());
+                count += entry.getValue().size();
+                i++;
+            }
+            return new Timeline(times, commands, count);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package de.themoep.timedscripts;
 
-import java.util.Map;
+import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * TimedScripts
@@ -26,4 +27,43 @@ public class Utils {
         }
         return String.format("%s", time);
     }
+
+    /**
+     * Format a duration for display
+     * @param nanos The duration in nanoseconds
+     * @return The duration in milliseconds with three decimals, e.g. <tt>0.125ms</tt>
+     */
+    public static String formatNanos(long nanos) {
+        return String.format("%.3fms", nanos / 1000000.0);
+    }
+
+    /**
+     * Get an enum constant by its case insensitive name
+     * @param logger The logger to log invalid names to
+     * @param type   The enum class
+     * @param name   The name of the constant, can be <tt>null</tt>
+     * @param def    The value to return if the name is <tt>null</tt> or not valid
+     * @return The enum constant or the default
+     */
+    public static <T extends Enum<T>> T getEnum(Logger logger, Class<T> type, String name, T def) {
+        if (name == null) {
+            return def;
+        }
+        try {
+            return Enum.valueOf(type, name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning(name + " is not a valid " + type.getSimpleName() + "! Using " + def + " instead.");
+            return def;
+        }
+    }
+
+    /**
+     * Create an array of lists, Java doesn't allow creating arrays of a generic type directly
+     * @param size The length of the array
+     * @return A new array with only <tt>null</tt> elements
+     */
+    @SuppressWarnings("unchecked") // The array only contains nulls, there is nothing of another type in it yet
+    static <T> List<T>[] newListArray(int size) {
+        return new List[size];
+    }
 }
@@ -0,0 +1,99 @@
+package de.themoep.timedscripts;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * Generates script files and data folders to run the plugin against
+ */
+public class ScriptFiles {
+
+    /**
+     * Write a script file with a header and one entry per tick. Every fourth entry
+     * has three commands on their own lines, the others have one on the time line.
+     * @param folder  The folder to write the file to
+     * @param name    The name of the script
+     * @param entries The amount of entries
+     * @return The amount of lines written
+     * @throws IOException When the file could not be written
+     */
+    public static int write(File folder, String name, int entries) throws IOException {
+        int lines = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(new File(folder, name + ".txt").toPath(), StandardCharsets.UTF_8)) {
+            writer.write("# Script: " + name);
+            writer.newLine();
+            writer.write("# Author: Benchmark (00000000-0000-0000-0000-000000000000)");
+            writer.newLine();
+            lines += 2;
+            for (int i = 0; i < entries; i++) {
+                String time = Utils.formatTime(i * 0.05);
+                if (i % 4 == 0) {
+                    writer.write(time + ":");
+                    writer.newLine();
+                    writer.write("- say Entry " + i + " for %sender% in %senderworld%");
+                    writer.newLine();
+                    writer.write("- particle flame %senderx% %sendery% %senderz% 0.5 0.5 0.5 0 " + i);
+                    writer.newLine();
+                    writer.write("- playsound minecraft:block.note_block.harp master %sender% ~ ~ ~ 1 " + (i % 24) / 12.0);
+                    writer.newLine();
+                    lines += 4;
+                } else {
+                    writer.write(time + ": say Entry " + i + " with %value=default value%");
+                    writer.newLine();
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Create a data folder with an empty scripts folder
+     * @return The data folder
+     * @throws IOException When the folder could not be created
+     */
+    public static File createDataFolder() throws IOException {
+        File dataFolder = Files.createTempDirectory("timedscripts").toFile();
+        Files.createDirectories(new File(dataFolder, "scripts").toPath());
+        return dataFolder;
+    }
+
+    /**
+     * Delete a folder with everything in it
+     * @param folder The folder
+     * @throws IOException When something could not be deleted
+     */
+    public static void delete(File folder) throws IOException {
+        if (!folder.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package de.themoep.timedscripts;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TimedScripts
+ * Copyright (C) 2016 Max Lee (https://github.com/Phoenix616/)
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Mozilla Public License as published by
+ * the Mozilla Foundation, version 2.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Mozilla Public License v2.0 for more details.
+ * <p/>
+ * You should have received a copy of the Mozilla Public License v2.0
+ * along with this program. If not, see <http://mozilla.org/MPL/2.0/>.
+ */
+
+/**
+ * A server that only implements what the plugin uses so that it can run without Minecraft.
+ * Sync tasks only run when {@link #tick()} is called, the thread calling it is the main thread.
+ * Every tick advances a virtual clock by 50 milliseconds that the plugin's scheduler can use
+ * instead of the real time. Dispatched commands are only counted. Everything else returns default values.
+ */
+public class StandInServer {
+    private final Logger logger = Logger.getAnonymousLogger();
+    private final Handler handler = new ConsoleHandler();
+    private final Server server;
+    private final BukkitScheduler scheduler;
+    private final PluginManager pluginManager;
+    private final ConsoleCommandSender console;
+    private final World world;
+
+    private final List<SyncTask> syncTasks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private final ExecutorService async = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "StandIn Async #" + threadIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService asyncTimers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "StandIn Async Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private volatile Thread mainThread = Thread.currentThread();
+    private volatile long currentTick = 0;
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    public StandInServer() {
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        setLogLevel(Level.WARNING);
+
+        pluginManager = stub(PluginManager.class, (proxy, method, args) -> null);
+        world = stub(World.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return "world";
+                case "getSpawnLocation":
+                    return new Location((World) proxy, 0, 64, 0);
+            }
+            return null;
+        });
+        scheduler = stub(BukkitScheduler.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "runTask":
+                    return schedule((Runnable) args[1], 0, -1);
+                case "runTaskLater":
+                    return schedule((Runnable) args[1], (Long) args[2], -1);
+                case "runTaskTimer":
+                    return schedule((Runnable) args[1], (Long) args[2], (Long) args[3]);
+                case "runTaskAsynchronously":
+                    return task(async.submit((Runnable) args[1]));
+                case "runTaskLaterAsynchronously":
+                    return task(asyncTimers.schedule(() -> async.execute((Runnable) args[1]), (Long) args[2] * ScriptScheduler.MILLIS_PER_TICK, TimeUnit.MILLISECONDS));
+                case "runTaskTimerAsynchronously":
+                    return task(asyncTimers.scheduleAtFixedRate((Runnable) args[1],
+                            (Long) args[2] * ScriptScheduler.MILLIS_PER_TICK,
+                            Math.max((Long) args[3], 1) * ScriptScheduler.MILLIS_PER_TICK, TimeUnit.MILLISECONDS));
+                case "callSyncMethod":
+                    FutureTask<?> future = new FutureTask<>((Callable<?>) args[1]);
+                    schedule(future, 0, -1);
+                    return future;
+                case "cancelTasks":
+                    for (SyncTask task : syncTasks) {
+                        task.cancel();
+                    }
+                    return null;
+            }
+            return null;
+        });
+        server = stub(Server.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getLogger":
+                    return logger;
+                case "getName":
+                    return "StandInServer";
+                case "getScheduler":
+                    return scheduler;
+                case "getPluginManager":
+                    return pluginManager;
+                case "getConsoleSender":
+                    return getConsole();
+                case "getWorlds":
+                    return Collections.singletonList(world);
+                case "getWorld":
+                    return world;
+                case "isPrimaryThread":
+                    return Thread.currentThread() == mainThread;
+                case "dispatchCommand":
+                    dispatched.increment();
+                    return true;
+            }
+            return null;
+        });
+        console = stub(ConsoleCommandSender.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return "CONSOLE";
+                case "getServer":
+                    return server;
+                case "isOp":
+                case "hasPermission":
+                case "isPermissionSet":
+                    return true;
+                case "sendMessage":
+                    messages.increment();
+                    return null;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Create an instance of the plugin that uses this server
+     * @param dataFolder The folder for the config and the scripts
+     * @return The plugin, not enabled
+     */
+    @SuppressWarnings("deprecation")
+    public TimedScripts createPlugin(File dataFolder) {
+        PluginDescriptionFile description = new PluginDescriptionFile("TimedScripts", "stand-in", TimedScripts.class.getName());
+        return new TimedScripts(new JavaPluginLoader(server), description, dataFolder, new File(dataFolder, "TimedScripts.jar"));
+    }
+
+    /**
+     * Run one server tick: the virtual clock advances and all sync tasks that are due run on the calling thread
+     */
+    public void tick() {
+        mainThread = Thread.currentThread();
+        nanoTime.addAndGet(ScriptScheduler.MILLIS_PER_TICK * 1000000);
+        long tick = ++currentTick;
+        for (SyncTask task : syncTasks) {
+            if (task.due <= tick) {
+                if (task.period > 0) {
+                    task.due = tick + task.period;
+                } else {
+                    syncTasks.remove(task);
+                }
+                try {
+                    task.runnable.run();
+                } catch (Throwable e) {
+                    logger.log(Level.SEVERE, "Error while running a sync task", e);
+                }
+            }
+        }
+    }
+
+    private BukkitTask schedule(Runnable runnable, long delay, long period) {
+        SyncTask task = new SyncTask(taskIds.incrementAndGet(), runnable, currentTick + Math.max(delay, 1), period);
+        syncTasks.add(task);
+        return stub(BukkitTask.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getTaskId":
+                    return task.id;
+                case "isSync":
+                    return true;
+                case "isCancelled":
+                    return !syncTasks.contains(task);
+                case "cancel":
+                    task.cancel();
+                    return null;
+            }
+            return null;
+        });
+    }
+
+    private BukkitTask task(Future<?> future) {
+        int id = taskIds.incrementAndGet();
+        return stub(BukkitTask.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getTaskId":
+                    return id;
+                case "isSync":
+                    return false;
+                case "isCancelled":
+                    return future.isCancelled();
+                case "cancel":
+                    future.cancel(false);
+                    return null;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Advance the virtual clock without running a tick, e.g. to simulate a lagging server
+     * @param millis The milliseconds to advance by
+     */
+    public void advance(long millis) {
+        nanoTime.addAndGet(millis * 1000000);
+    }
+
+    /**
+     * Get the virtual clock that advances with every tick
+     * @return The time in nanoseconds
+     */
+    public long getNanoTime() {
+        return nanoTime.get();
+    }
+
+    /**
+     * Set which messages of the plugin and the server get printed
+     * @param level The minimum level
+     */
+    public void setLogLevel(Level level) {
+        handler.setLevel(level);
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public ConsoleCommandSender getConsole() {
+        return console;
+    }
+
+    /**
+     * @return The number of the last tick that ran
+     */
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * @return The amount of commands that were dispatched through the server
+     */
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * @return The amount of messages sent to the console sender
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * Cancel all tasks and stop the async threads
+     */
+    public void close() {
+        syncTasks.clear();
+        asyncTimers.shutdownNow();
+        async.shutdownNow();
+    }
+
+    /**
+     * Create an object of an interface that handles some methods and returns default values for all others
+     * @param type    The interface
+     * @param handler The handler, returning <tt>null</tt> from it means the default value
+     * @return The stub
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StandInServer.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "@StandIn";
+            }
+            Object value = handler.invoke(proxy, method, args);
+            return value != null ? value : getDefault(method.getReturnType());
+        });
+    }
+
+    private static Object getDefault(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0D;
+        } else if (type == float.class) {
+            return 0F;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == List.class || type == Collection.class) {
+            return Collections.emptyList();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        }
+        return null;
+    }
+
+    private class SyncTask {
+        private final int id;
+        private final Runnable runnable;
+        private final long period;
+        private volatile long due;
+
+        private SyncTask(int id, Runnable runnable, long due, long period) {
+            this.id = id;
+            this.runnable = runnable;
+            this.due = due;
+            this.period = period;
+        }
+
+        private void cancel() {
+            syncTasks.remove(this);
+        }
+    }
+}